@@ -0,0 +1,27 @@
+package com.iuxta.uxta;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.iuxta.uxta.service.RequestService;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+
+/**
+ * Sets the location of requests posted before requests had one to their poster's home, so they show up in the feed
+ * sorted by distance. Run once with {@code curl -X POST http://localhost:<admin port>/tasks/backfill-request-locations},
+ * it's safe to run again.
+ */
+public class BackfillRequestLocationsTask extends Task {
+    private RequestService requestService;
+
+    protected BackfillRequestLocationsTask(RequestService requestService) {
+        super("backfill-request-locations");
+        this.requestService = requestService;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        int count = requestService.backfillLocations();
+        output.println("Set the location of " + count + " requests");
+    }
+}
@@ -0,0 +1,31 @@
+package com.iuxta.uxta;
+
+import com.codahale.metrics.health.HealthCheck;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unhealthy if any index declared with the {@link IndexManager} is missing. Indexes nobody declared are listed in
+ * the message but don't fail the check, they only cost us on writes.
+ */
+public class IndexHealthCheck extends HealthCheck {
+    private IndexManager indexManager;
+
+    protected IndexHealthCheck(IndexManager indexManager) {
+        this.indexManager = indexManager;
+    }
+
+    @Override
+    protected Result check() throws Exception {
+        Map<String, List<String>> missing = indexManager.findMissing();
+        Map<String, List<String>> unused = indexManager.findUnused();
+        if (!missing.isEmpty()) {
+            return Result.unhealthy("missing indexes " + missing + ", unused indexes " + unused);
+        }
+        if (!unused.isEmpty()) {
+            return Result.healthy("unused indexes " + unused);
+        }
+        return Result.healthy();
+    }
+}
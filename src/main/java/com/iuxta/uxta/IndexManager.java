@@ -0,0 +1,138 @@
+package com.iuxta.uxta;
+
+import com.mongodb.*;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Keeps track of the indexes our queries rely on and creates them when the app starts. createIndex is a no-op when
+ * the index is already there, so this is safe to run on every boot. {@link IndexHealthCheck} uses the same list to
+ * report indexes that are missing from, or extra on, each collection.
+ */
+public class IndexManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexManager.class);
+
+    private static final String ID_INDEX = "_id_";
+
+    private final Map<DBCollection, List<DBObject>> declared = new LinkedHashMap<>();
+
+    private final Map<DBCollection, Set<String>> unique = new HashMap<>();
+
+    public IndexManager declare(JacksonDBCollection<?, ?> collection, DBObject keys) {
+        declared.computeIfAbsent(collection.getDbCollection(), c -> new ArrayList<>()).add(keys);
+        return this;
+    }
+
+    /**
+     * Like {@link #declare}, for an index that also keeps the keys unique. It can't be created while the collection
+     * has duplicates, which is logged and reported as missing until they're cleaned up.
+     */
+    public IndexManager declareUnique(JacksonDBCollection<?, ?> collection, DBObject keys) {
+        unique.computeIfAbsent(collection.getDbCollection(), c -> new HashSet<>()).add(indexName(keys));
+        return declare(collection, keys);
+    }
+
+    public void ensureIndexes() {
+        declared.forEach((collection, indexes) -> {
+            for (DBObject keys : indexes) {
+                String name = indexName(keys);
+                boolean isUnique = unique.getOrDefault(collection, Collections.emptySet()).contains(name);
+                try {
+                    collection.createIndex(keys, new BasicDBObject("name", name).append("unique", isUnique));
+                } catch (MongoException e) {
+                    // usually an index with the same keys under another name, leave it for someone to look at
+                    LOGGER.error("Could not create index [" + name + "] on [" + collection.getName() + "]: " +
+                            e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return collection name -> declared indexes that don't exist on the collection
+     */
+    public Map<String, List<String>> findMissing() {
+        Map<String, List<String>> missing = new TreeMap<>();
+        declared.forEach((collection, indexes) -> {
+            Set<String> existing = existingIndexes(collection);
+            for (DBObject keys : indexes) {
+                String name = indexName(keys);
+                if (!existing.contains(name)) {
+                    missing.computeIfAbsent(collection.getName(), c -> new ArrayList<>()).add(name);
+                }
+            }
+        });
+        return missing;
+    }
+
+    /**
+     * Indexes that exist on a collection but that no query declared it needs. When the server supports $indexStats
+     * the number of times the index was used since the server last started is added to the name.
+     *
+     * @return collection name -> undeclared indexes
+     */
+    public Map<String, List<String>> findUnused() {
+        Map<String, List<String>> unused = new TreeMap<>();
+        declared.forEach((collection, indexes) -> {
+            Set<String> wanted = new HashSet<>();
+            indexes.forEach(keys -> wanted.add(indexName(keys)));
+            Map<String, Long> ops = indexUsage(collection);
+            for (String name : existingIndexes(collection)) {
+                if (name.equals(ID_INDEX) || wanted.contains(name)) {
+                    continue;
+                }
+                String entry = ops.containsKey(name) ? name + " (" + ops.get(name) + " ops)" : name;
+                unused.computeIfAbsent(collection.getName(), c -> new ArrayList<>()).add(entry);
+            }
+        });
+        return unused;
+    }
+
+    /**
+     * Same naming scheme mongo uses when no name is given, so indexes created by hand or by older builds match.
+     */
+    static String indexName(DBObject keys) {
+        StringBuilder name = new StringBuilder();
+        for (String key : keys.keySet()) {
+            if (name.length() > 0) {
+                name.append('_');
+            }
+            name.append(key).append('_').append(keys.get(key));
+        }
+        return name.toString();
+    }
+
+    private Set<String> existingIndexes(DBCollection collection) {
+        Set<String> names = new HashSet<>();
+        for (DBObject index : collection.getIndexInfo()) {
+            names.add((String) index.get("name"));
+        }
+        return names;
+    }
+
+    private Map<String, Long> indexUsage(DBCollection collection) {
+        Map<String, Long> ops = new HashMap<>();
+        List<DBObject> pipeline = Collections.singletonList(new BasicDBObject("$indexStats", new BasicDBObject()));
+        AggregationOptions options = AggregationOptions.builder()
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+        try (Cursor cursor = collection.aggregate(pipeline, options)) {
+            while (cursor.hasNext()) {
+                DBObject stat = cursor.next();
+                DBObject accesses = (DBObject) stat.get("accesses");
+                Object count = accesses != null ? accesses.get("ops") : null;
+                if (count instanceof Number) {
+                    ops.put((String) stat.get("name"), ((Number) count).longValue());
+                }
+            }
+        } catch (MongoException e) {
+            // $indexStats needs mongo 3.2+, without it we can only say which indexes are undeclared
+            LOGGER.warn("Could not read index stats for [" + collection.getName() + "]: " + e.getMessage());
+        }
+        return ops;
+    }
+}
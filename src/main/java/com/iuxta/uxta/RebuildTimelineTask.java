@@ -0,0 +1,27 @@
+package com.iuxta.uxta;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.iuxta.uxta.service.HistoryService;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+
+/**
+ * Backfills the userTimeline collection from the requests, offers and transactions in mongo. Run it once after
+ * deploying the timeline, or whenever it needs repairing, with
+ * {@code curl -X POST http://localhost:<admin port>/tasks/rebuild-timeline}.
+ */
+public class RebuildTimelineTask extends Task {
+    private HistoryService historyService;
+
+    protected RebuildTimelineTask(HistoryService historyService) {
+        super("rebuild-timeline");
+        this.historyService = historyService;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        int count = historyService.rebuild();
+        output.println("Rebuilt timeline entries for " + count + " requests");
+    }
+}
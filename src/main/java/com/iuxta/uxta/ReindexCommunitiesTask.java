@@ -0,0 +1,26 @@
+package com.iuxta.uxta;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.iuxta.uxta.service.CommunityIndex;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+
+/**
+ * Rebuilds the community search index from mongo, run it after adding or editing communities so they show up in
+ * search without waiting for the ttl, with {@code curl -X POST http://localhost:<admin port>/tasks/reindex-communities}.
+ */
+public class ReindexCommunitiesTask extends Task {
+    private CommunityIndex communityIndex;
+
+    protected ReindexCommunitiesTask(CommunityIndex communityIndex) {
+        super("reindex-communities");
+        this.communityIndex = communityIndex;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        int count = communityIndex.reload();
+        output.println("Indexed " + count + " communities");
+    }
+}
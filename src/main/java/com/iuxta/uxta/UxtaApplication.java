@@ -1,9 +1,14 @@
 package com.iuxta.uxta;
 
+import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.eventbus.EventBus;
 import com.iuxta.uxta.auth.CredentialAuthFilter;
 import com.iuxta.uxta.auth.NearbyAuthenticator;
 import com.iuxta.uxta.auth.NearbyAuthorizer;
+import com.iuxta.uxta.auth.VerifiedTokenCache;
 import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationDispatcher;
+import com.iuxta.uxta.firebase.NotificationOutbox;
 import com.iuxta.uxta.model.*;
 import com.iuxta.uxta.resources.*;
 import com.iuxta.uxta.service.*;
@@ -23,6 +28,8 @@ import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
 import org.glassfish.jersey.server.filter.RolesAllowedDynamicFeature;
 import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
@@ -30,6 +37,8 @@ import java.util.EnumSet;
 
 public class UxtaApplication extends Application<UxtaConfiguration> {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(UxtaApplication.class);
+
     public static void main(String[] args) throws Exception {
         new UxtaApplication().run(args);
     }
@@ -109,6 +118,18 @@ public class UxtaApplication extends Application<UxtaConfiguration> {
         JacksonDBCollection<Community, String> communitiesCollection =
                 JacksonDBCollection.wrap(db.getCollection("communities"), Community.class, String.class);
 
+        JacksonDBCollection<OutboxNotification, String> outboxCollection =
+                JacksonDBCollection.wrap(db.getCollection("notificationOutbox"), OutboxNotification.class, String.class);
+
+        JacksonDBCollection<TimelineEntry, String> timelineCollection =
+                JacksonDBCollection.wrap(db.getCollection("userTimeline"), TimelineEntry.class, String.class);
+        JacksonDBCollection<OpenItems, String> openItemsCollection =
+                JacksonDBCollection.wrap(db.getCollection("openItems"), OpenItems.class, String.class);
+        JacksonDBCollection<ProfileFanout, String> profileFanoutCollection =
+                JacksonDBCollection.wrap(db.getCollection("profileFanout"), ProfileFanout.class, String.class);
+        JacksonDBCollection<DigestWindow, String> digestWindowCollection =
+                JacksonDBCollection.wrap(db.getCollection("digestWindows"), DigestWindow.class, String.class);
+
 
         // cloud connection server
         int fcmPort = Integer.parseInt(config.fcmPort);
@@ -116,34 +137,125 @@ public class UxtaApplication extends Application<UxtaConfiguration> {
             fcmPort = 5236;
         }
         CcsServer ccsServer = new CcsServer(config.fcmServer, fcmPort, "not sure",
-                config.fcmApiKey, config.fcmSenderId);
+                config.fcmApiKey, config.fcmSenderId, config.fcmConnections,
+                environment.lifecycle().scheduledExecutorService("ccs-retry-%d").build(),
+                environment.lifecycle().scheduledExecutorService("ccs-connect-%d").build());
         ccsServer.connect();
+        NotificationDispatcher notificationDispatcher = new NotificationDispatcher(ccsServer, environment.metrics(),
+                environment.lifecycle(), config.notificationSenderThreads, config.notificationQueueSize);
+        environment.lifecycle().manage(notificationDispatcher);
+        UserCache userCache = new UserCache(userCollection, environment.metrics(), config.userCacheMaxSize,
+                config.userCacheTtl);
+        NotificationOutbox notificationOutbox = new NotificationOutbox(outboxCollection, userCache, ccsServer,
+                environment.metrics(), environment.lifecycle(), config.notificationOutboxThreads,
+                config.notificationOutboxPollInterval);
+        environment.lifecycle().manage(notificationOutbox);
 
-        requestCollection.createIndex(new BasicDBObject("location", "2dsphere"));
+        IndexManager indexManager = new IndexManager()
+                // RequestService
+                .declare(requestCollection, new BasicDBObject("location", "2dsphere"))
+                .declare(requestCollection, new BasicDBObject("itemName", "text").append("description", "text"))
+                .declare(requestCollection, new BasicDBObject("communityId", 1).append("status", 1).append("postDate", -1))
+                .declare(requestCollection, new BasicDBObject("user.userId", 1).append("postDate", -1))
+                .declare(requestCollection, new BasicDBObject("user._id", 1).append("type", 1).append("postDate", -1))
+                // RecentRequestsDigest, across communities
+                .declare(requestCollection, new BasicDBObject("status", 1).append("postDate", 1))
+                // the feed's default order, and its expired requests
+                .declare(requestCollection, new BasicDBObject("communityId", 1).append("status", 1).append("_id", 1))
+                .declare(requestCollection, new BasicDBObject("communityId", 1).append("expiredDate", 1))
+                // ExpirySweeper, finding the open requests to close
+                .declare(requestCollection, new BasicDBObject("status", 1).append("expireDate", 1))
+                // ResponseService
+                .declare(responseCollection, new BasicDBObject("requestId", 1).append("responseTime", -1))
+                .declare(responseCollection, new BasicDBObject("responderId", 1).append("responseStatus", 1))
+                .declare(responseCollection, new BasicDBObject("responderId", 1).append("isOfferToBuyOrRent", 1)
+                        .append("responseTime", -1))
+                .declare(transactionCollection, new BasicDBObject("responseId", 1))
+                .declare(transactionCollection, new BasicDBObject("requestId", 1).append("canceled", 1))
+                .declare(transactionCollection, new BasicDBObject("buyerId", 1).append("finalPrice", 1))
+                .declare(transactionCollection, new BasicDBObject("sellerId", 1).append("finalPrice", 1))
+                // ExpirySweeper, the dates are cleared with the codes so these only hold live codes
+                .declare(transactionCollection, new BasicDBObject("exchangeCodeExpireDate", 1))
+                .declare(transactionCollection, new BasicDBObject("returnCodeExpireDate", 1))
+                .declare(responseFlagCollection, new BasicDBObject("responseId", 1).append("status", 1))
+                // RequestFlagService
+                .declare(requestFlagCollection, new BasicDBObject("reporterId", 1).append("requestId", 1)
+                        .append("status", 1))
+                // NearbyAuthenticator, UserService and the new post notifications
+                .declare(userCollection, new BasicDBObject("userId", 1))
+                .declare(userCollection, new BasicDBObject("admin", 1))
+                .declare(userCollection, new BasicDBObject("communityId", 1).append("newRequestNotificationsEnabled", 1))
+                // NotificationOutbox
+                .declare(outboxCollection, new BasicDBObject("status", 1).append("nextAttemptDate", 1))
+                .declare(outboxCollection, new BasicDBObject("messageId", 1))
+                .declare(timelineCollection, new BasicDBObject("userId", 1).append("rank", 1).append("sortDate", -1)
+                        .append("_id", -1))
+                // HistoryService.refresh, one entry per request, user and offer
+                .declareUnique(timelineCollection, new BasicDBObject("requestId", 1).append("userId", 1)
+                        .append("responseId", 1))
+                // OpenItemCounter, when a request is deleted
+                .declare(openItemsCollection, new BasicDBObject("requests", 1));
+        indexManager.ensureIndexes();
         environment.healthChecks().register("mongo healthcheck", new MongoHealthCheck(mongo));
-        ResponseService responseService = new ResponseService(requestCollection, responseCollection, userCollection,
-                transactionCollection, responseFlagCollection, ccsServer);
+        environment.healthChecks().register("index healthcheck", new IndexHealthCheck(indexManager));
+        // domain events are handled on one thread, in the order they were posted
+        EventBus eventBus = new AsyncEventBus(environment.lifecycle().executorService("domain-events-%d")
+                .minThreads(1).maxThreads(1).build(),
+                (e, context) -> LOGGER.error("Could not handle " + context.getEvent().getClass().getSimpleName() +
+                        " in " + context.getSubscriberMethod().getName(), e));
+        AdminRoster adminRoster = new AdminRoster(userCollection, environment.metrics(), config.adminRosterTtl);
+        KeywordMatcher keywordMatcher = new KeywordMatcher(userCollection, environment.metrics());
+        environment.lifecycle().manage(new RecentRequestsDigest(digestWindowCollection, requestCollection,
+                userCollection, notificationOutbox, keywordMatcher, environment.metrics(),
+                environment.lifecycle().scheduledExecutorService("recent-requests-digest-%d").build(),
+                config.recentRequestsDigestInterval));
+        OpenItemCounter openItemCounter = new OpenItemCounter(openItemsCollection, requestCollection,
+                responseCollection, transactionCollection, eventBus);
+        environment.lifecycle().manage(new ExpirySweeper(requestCollection, responseCollection, transactionCollection,
+                userCache, notificationOutbox, eventBus, environment.metrics(),
+                environment.lifecycle().scheduledExecutorService("expiry-sweeper-%d").build(),
+                config.expirySweepInterval));
+        ResponseService responseService = new ResponseService(requestCollection, responseCollection, userCache,
+                transactionCollection, responseFlagCollection, notificationOutbox, eventBus, adminRoster,
+                openItemCounter);
         //StripeService stripeService = new StripeService(config.stripeSecretKey, config.stripePublishableKey, userCollection, ccsServer);
-        UserService userService = new UserService(responseService, userCollection, userFlagCollection, ccsServer);
-        RequestFlagService requestFlagService = new RequestFlagService(requestCollection, requestFlagCollection, userCollection, ccsServer);
-        environment.jersey().register(new UserResource(userCollection, requestCollection, userService, responseService));
-        RequestService requestService = new RequestService(categoryCollection, requestCollection, ccsServer, userCollection, responseService, searchTermsCollection, communitiesCollection);
-        CommunityService communityService = new CommunityService(communitiesCollection, userCollection, ccsServer);
-        environment.jersey().register(new RequestsResource(requestCollection, requestService, responseCollection, responseService));
-        environment.jersey().register(new ResponsesResource(requestCollection, responseCollection, responseService, userCollection));
-        environment.jersey().register(new TransactionsResource(requestCollection, responseCollection, userCollection,
-                transactionCollection, ccsServer));
+        UserService userService = new UserService(responseService, userCollection, userFlagCollection, notificationOutbox, adminRoster, userCache);
+        RequestFlagService requestFlagService = new RequestFlagService(requestCollection, requestFlagCollection, userCollection, notificationOutbox, adminRoster);
+        HistoryService historyService = new HistoryService(requestCollection, responseCollection, userCollection,
+                transactionCollection, timelineCollection, eventBus);
+        environment.admin().addTask(new RebuildTimelineTask(historyService));
+        ProfileFanoutService profileFanoutService = new ProfileFanoutService(profileFanoutCollection, userCollection,
+                requestCollection, responseCollection, eventBus);
+        environment.lifecycle().manage(profileFanoutService);
+        environment.jersey().register(new UserResource(userCollection, requestCollection, userService, historyService, adminRoster, userCache, profileFanoutService, keywordMatcher));
+        CategorySnapshot categorySnapshot = new CategorySnapshot(categoryCollection);
+        RequestService requestService = new RequestService(categorySnapshot, requestCollection, notificationOutbox, userCollection, responseService, searchTermsCollection, communitiesCollection, notificationDispatcher, adminRoster, keywordMatcher);
+        environment.admin().addTask(new BackfillRequestLocationsTask(requestService));
+        CommunityIndex communityIndex = new CommunityIndex(communitiesCollection, environment.metrics(),
+                environment.lifecycle().executorService("community-index-%d").minThreads(1).maxThreads(1).build(),
+                config.communityIndexTtl);
+        environment.admin().addTask(new ReindexCommunitiesTask(communityIndex));
+        CommunityService communityService = new CommunityService(communitiesCollection, userCollection, notificationOutbox, adminRoster, userCache, communityIndex, keywordMatcher);
+        environment.jersey().register(new RequestsResource(requestCollection, requestService, responseCollection, responseService, eventBus, openItemCounter));
+        environment.jersey().register(new ResponsesResource(requestCollection, responseCollection, responseService, userCache));
+        environment.jersey().register(new TransactionsResource(requestCollection, responseCollection, userCache,
+                transactionCollection, notificationOutbox, eventBus, openItemCounter));
         //environment.jersey().register(new StripeResource(stripeService));
         environment.jersey().register(new RequestFlagResource(requestFlagService));
         environment.jersey().register(new CommunitiesResource(communityService));
-        NearbyAuthenticator authenticator = new NearbyAuthenticator(userCollection, config.fbAccessToken, config.googleClientIds, ccsServer);
+        VerifiedTokenCache tokenCache = new VerifiedTokenCache(environment.metrics(), config.authTokenCacheMaxSize,
+                config.authTokenCacheTtl);
+        NearbyAuthenticator authenticator = new NearbyAuthenticator(userCollection, config.fbAccessToken,
+                config.googleClientIds, notificationOutbox, tokenCache, adminRoster, userCache);
         environment.jersey().register(new AuthDynamicFeature(new CredentialAuthFilter.Builder<User>()
                 .setAuthenticator(authenticator)
                 .setAuthorizer(new NearbyAuthorizer())
                 .setRealm("SUPER SECRET STUFF")
                 .buildAuthFilter()));
+        environment.jersey().register(new ConditionalGetFeature(requestCollection, responseCollection,
+                transactionCollection, historyService));
         environment.jersey().register(new HealthResource());
-        environment.jersey().register(new CategoriesResource(categoryCollection));
+        environment.jersey().register(new CategoriesResource(categoryCollection, categorySnapshot));
         environment.jersey().register(RolesAllowedDynamicFeature.class);
         environment.jersey().register(new AuthValueFactoryProvider.Binder(User.class));
     }
@@ -2,6 +2,7 @@ package com.iuxta.uxta;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.Configuration;
+import io.dropwizard.util.Duration;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import org.hibernate.validator.constraints.NotEmpty;
 
@@ -42,4 +43,52 @@ public class UxtaConfiguration extends Configuration {
     @JsonProperty
     @NotEmpty
     public String fcmSenderId;
+
+    // number of XMPP connections to CCS, each one can have 100 messages waiting on an ack
+    @JsonProperty
+    public int fcmConnections = 2;
+
+    // how many verified facebook/google tokens to keep around, and for how long at most
+    @JsonProperty
+    public long authTokenCacheMaxSize = 10000;
+
+    @JsonProperty
+    public Duration authTokenCacheTtl = Duration.minutes(10);
+
+    // threads sending fan-out notifications, and how many sends can wait in line before the fan-out blocks
+    @JsonProperty
+    public int notificationSenderThreads = 4;
+
+    @JsonProperty
+    public int notificationQueueSize = 1000;
+
+    // workers sending notifications from the mongo outbox, and how often to look for new ones
+    @JsonProperty
+    public int notificationOutboxThreads = 4;
+
+    @JsonProperty
+    public Duration notificationOutboxPollInterval = Duration.seconds(1);
+
+    // how long the in-memory list of admins is used before it's read from mongo again
+    @JsonProperty
+    public Duration adminRosterTtl = Duration.minutes(1);
+
+    // how many users to keep in memory, and for how long at most
+    @JsonProperty
+    public long userCacheMaxSize = 10000;
+
+    @JsonProperty
+    public Duration userCacheTtl = Duration.minutes(5);
+
+    // how long the in-memory community search index is used before it's rebuilt from mongo
+    @JsonProperty
+    public Duration communityIndexTtl = Duration.minutes(5);
+
+    // how often users are sent a digest of the requests posted in their community since the last one
+    @JsonProperty
+    public Duration recentRequestsDigestInterval = Duration.minutes(15);
+
+    // how often expired requests are closed and expired exchange/return codes cleared
+    @JsonProperty
+    public Duration expirySweepInterval = Duration.minutes(1);
 }
@@ -1,12 +1,17 @@
 package com.iuxta.uxta;
 
 import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.model.VersionedDocument;
 import org.apache.commons.codec.binary.Base32;
+import org.mongojack.JacksonDBCollection;
+import org.mongojack.WriteResult;
 
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
+import java.text.Normalizer;
 import java.util.Currency;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by kerrk on 12/3/16.
@@ -20,8 +25,14 @@ public class UxtaUtils {
     public static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_EVEN;
     public static final int MAX_OPEN_REQUESTS = 10;
     public static final int MAX_OPEN_RESPONSES = 5;
+    // open requests (or offers) and transactions together
+    public static final int MAX_OPEN_ITEMS = 20;
     public static final int DEFAULT_LIMIT = 20;
     public static final int MAX_LIMIT = 20;
+    // notificationRadius and the radius search param are in miles, mongo's geo distances are in meters
+    public static final double METERS_PER_MILE = 1609.344;
+
+    private static final AtomicLong VERSION_CLOCK = new AtomicLong();
 
     //6 character string
     public static String getUniqueCode() {
@@ -35,7 +46,69 @@ public class UxtaUtils {
         //return code.replaceAll("(.{5})(?!$)", "$1-");
     }
 
+    public static int getLimit(Integer limit) {
+        return (limit == null || limit > MAX_LIMIT) ? DEFAULT_LIMIT : limit;
+    }
+
     public static String getUserIdString(User user) {
         return " [" + user.getName() + " - " + user.getId() + "] ";
     }
+
+    /**
+     * The next value for a document's version field. It is always higher than the document's current version and than
+     * any version this server handed out before, so two saves starting from the same copy still get different versions.
+     *
+     * @param current the document's current version, null if it doesn't have one yet
+     * @return
+     */
+    public static long nextVersion(Long current) {
+        long floor = current != null ? current : 0;
+        return VERSION_CLOCK.updateAndGet(last ->
+                Math.max(Math.max(last, floor) + 1, System.currentTimeMillis() * 1000));
+    }
+
+    /**
+     * Moves the document to its next version, for writes that don't go through {@link #saveVersioned} or
+     * {@link #insertVersioned} (e.g. an upsert).
+     */
+    public static void bumpVersion(VersionedDocument document) {
+        document.setVersion(nextVersion(document.getVersion()));
+    }
+
+    /**
+     * Saves a versioned document with its next version, see {@link VersionedDocument}.
+     */
+    public static <T extends VersionedDocument> WriteResult<T, String> saveVersioned(
+            JacksonDBCollection<T, String> collection, T document) {
+        bumpVersion(document);
+        return collection.save(document);
+    }
+
+    /**
+     * Inserts a new versioned document with its first version, see {@link VersionedDocument}.
+     */
+    public static <T extends VersionedDocument> WriteResult<T, String> insertVersioned(
+            JacksonDBCollection<T, String> collection, T document) {
+        bumpVersion(document);
+        return collection.insert(document);
+    }
+
+    /**
+     * Splits text into lower case words without accents, anything that isn't a letter or digit separates words. Used
+     * wherever user text is matched in memory, so community search and notification keywords see the same words.
+     *
+     * @param text null for none
+     * @return the words, in order
+     */
+    public static String[] words(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase()
+                .replaceAll("[^\\p{Alnum}]+", " ")
+                .trim();
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
 }
@@ -8,11 +8,13 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.exception.InternalServerException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.AdminRoster;
+import com.iuxta.uxta.service.UserCache;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.Authenticator;
 import org.apache.commons.lang3.StringUtils;
@@ -23,9 +25,9 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.bson.types.ObjectId;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.slf4j.Logger;
@@ -56,16 +58,27 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
 
     private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
+
+    private VerifiedTokenCache tokenCache;
+
+    private AdminRoster adminRoster;
+
+    private UserCache userCache;
 
 
     GoogleIdTokenVerifier verifier;
 
 
-    public NearbyAuthenticator(JacksonDBCollection<User, String> userCollection, String fbAuthToken, List<String> googleClientIds, CcsServer ccsServer) {
+    public NearbyAuthenticator(JacksonDBCollection<User, String> userCollection, String fbAuthToken, List<String> googleClientIds,
+                               NotificationOutbox notificationOutbox, VerifiedTokenCache tokenCache,
+                               AdminRoster adminRoster, UserCache userCache) {
         this.userCollection = userCollection;
         this.fbAuthToken = fbAuthToken;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
+        this.tokenCache = tokenCache;
+        this.adminRoster = adminRoster;
+        this.userCache = userCache;
         try {
             this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
             verifier = new GoogleIdTokenVerifier.Builder(httpTransport, JSON_FACTORY)
@@ -100,6 +113,21 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
 
     private User doGoogleAuth(Credentials credentials) throws AuthenticationException {
         LOGGER.info("attempting to authenticate with google");
+        VerifiedToken token = tokenCache.get(credentials, () -> verifyGoogleToken(credentials));
+        String userId = token.getUserId();
+        LOGGER.info("Google User ID: " + userId);
+        User user = searchForExistingUser(userId);
+        if (user == null) {
+            user = createNewGoogleUser(token.getGooglePayload(), credentials.getIp());
+            sendAdminsNotificationOfNewUser(user.getName());
+            return user;
+        }
+        updateLoginFields(user, credentials, UxtaUtils.GOOGLE_AUTH_METHOD);
+        LOGGER.info("finished updating google user [" + user.getEmail() + "]");
+        return user;
+    }
+
+    private VerifiedToken verifyGoogleToken(Credentials credentials) throws AuthenticationException {
         LOGGER.info("Google Auth token [" + credentials.getToken() + "]");
         GoogleIdToken idToken;
         try {
@@ -109,38 +137,41 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
             LOGGER.error(error);
             throw new AuthenticationException(error);
         }
-        if (idToken != null) {
-            GoogleIdToken.Payload payload = idToken.getPayload();
+        if (idToken == null) {
+            throw new AuthenticationException("could not authenticate: " + "invalid google auth token");
+        }
+        GoogleIdToken.Payload payload = idToken.getPayload();
+        Long expiresAtSecs = payload.getExpirationTimeSeconds();
+        Date expiresAt = expiresAtSecs != null ? new Date(expiresAtSecs * 1000) : null;
+        return new VerifiedToken(payload.getSubject(), expiresAt, payload);
+    }
 
-            // Print user identifier
-            String userId = payload.getSubject();
-            LOGGER.info("Google User ID: " + userId);
+    private User doFacebookAuth(Credentials credentials) throws AuthenticationException {
+        LOGGER.info("attempting to authenticate with facebook");
+        VerifiedToken token = tokenCache.get(credentials, () -> verifyFacebookToken(credentials));
+        try {
+            String userId = token.getUserId();
             User user = searchForExistingUser(userId);
             if (user == null) {
-                user = createNewGoogleUser(payload, credentials.getIp());
-                sendAdminsNotificationOfNewUser(user.getName());
-                return user;
-            }
-            if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
-                user.setTosAccepted(true);
-                Date date = new Date();
-                user.setTimeTosAccepted(date);
-                user.setTosAcceptIp(credentials.getIp());
-            } else if (user.getTosAccepted() == null) {
-                user.setTosAccepted(false);
+                User newUser = createNewFacebookUser(userId, credentials.getIp());
+                sendAdminsNotificationOfNewUser(newUser.getName());
+                return newUser;
             }
-            LOGGER.info("finished updating google user [" + user.getEmail() + "]");
-            user.setAuthMethod(UxtaUtils.GOOGLE_AUTH_METHOD);
-            userCollection.save(user);
+            updateLoginFields(user, credentials, UxtaUtils.FB_AUTH_METHOD);
+            LOGGER.info("authenticated user [" + (user.getEmail() != null ? user.getEmail() : user.getId()) + "]");
             return user;
-
-        } else {
-            throw new AuthenticationException("could not authenticate: " + "invalid google auth token");
+        } catch (URISyntaxException e) {
+            String message = "Could not construct uri, got error: " + e.getMessage();
+            LOGGER.error(message);
+            throw new AuthenticationException(message);
+        } catch (IOException e) {
+            String message = "Received an error authenticating with facebook: " + e.getMessage();
+            LOGGER.error(message);
+            throw new AuthenticationException(message);
         }
     }
 
-    private User doFacebookAuth(Credentials credentials) throws AuthenticationException {
-        LOGGER.info("attempting to authenticate with facebook");
+    private VerifiedToken verifyFacebookToken(Credentials credentials) throws AuthenticationException {
         try {
             URIBuilder builder = new URIBuilder("https://graph.facebook.com/debug_token")
                     .addParameter("input_token", credentials.getToken())
@@ -151,28 +182,10 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
             if (httpResp.getStatusLine().getStatusCode() != 200) {
                 LOGGER.info(httpResp.getStatusLine().getStatusCode() + " ** facebook status code");
                 LOGGER.info(httpResp.getStatusLine().getReasonPhrase() + " ** facebook response");
+                httpResp.close();
                 throw new AuthenticationException("could not authenticate with facebook");
             }
-
-            String userId = extractUserId(httpResp);
-            User user = searchForExistingUser(userId);
-            if (user == null) {
-                User newUser = createNewFacebookUser(userId, credentials.getIp());
-                sendAdminsNotificationOfNewUser(newUser.getName());
-                return newUser;
-            }
-            if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
-                user.setTosAccepted(true);
-                Date date = new Date();
-                user.setTimeTosAccepted(date);
-                user.setTosAcceptIp(credentials.getIp());
-            } else if (user.getTosAccepted() == null) {
-                user.setTosAccepted(false);
-            }
-            user.setAuthMethod(UxtaUtils.FB_AUTH_METHOD);
-            userCollection.save(user);
-            LOGGER.info("authenticated user [" + (user.getEmail() != null ? user.getEmail() : user.getId()) + "]");
-            return user;
+            return extractFacebookToken(httpResp);
         } catch (URISyntaxException e) {
             String message = "Could not construct uri, got error: " + e.getMessage();
             LOGGER.error(message);
@@ -184,28 +197,54 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
         }
     }
 
+    /**
+     * Records tos acceptance & the auth method for a returning user. Only the fields that actually changed are
+     * written (with a $set) so a normal authenticated request doesn't touch the user document at all, and we don't
+     * clobber fields like blockedUsers or fcmRegistrationId that another request may be updating.
+     */
+    private void updateLoginFields(User user, Credentials credentials, String authMethod) {
+        BasicDBObject changes = new BasicDBObject();
+        if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
+            user.setTosAccepted(true);
+            Date date = new Date();
+            user.setTimeTosAccepted(date);
+            user.setTosAcceptIp(credentials.getIp());
+            changes.put("tosAccepted", true);
+            changes.put("timeTosAccepted", date);
+            changes.put("tosAcceptIp", credentials.getIp());
+        } else if (user.getTosAccepted() == null) {
+            user.setTosAccepted(false);
+            changes.put("tosAccepted", false);
+        }
+        if (!authMethod.equals(user.getAuthMethod())) {
+            user.setAuthMethod(authMethod);
+            changes.put("authMethod", authMethod);
+        }
+        if (!changes.isEmpty()) {
+            userCollection.update(new BasicDBObject("_id", new ObjectId(user.getId())),
+                    new BasicDBObject("$set", changes));
+            userCache.invalidate(user);
+        }
+    }
+
     private User searchForExistingUser(String userId) {
-        DBObject searchById = new BasicDBObject("userId", userId);
-        User user = userCollection.findOne(searchById);
-        return user;
+        return userCache.findByUserId(userId);
     }
 
     private void sendAdminsNotificationOfNewUser(String username) {
-        DBObject findAdmins = new BasicDBObject("admin", true);
-        DBCursor cursor = userCollection.find(findAdmins);
-        List<User> admins = cursor.toArray();
+        List<User> admins = adminRoster.getAdmins();
         if (admins != null && admins.size() > 0) {
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "New User Signed Up!");
             String body = "User [" + username + "] signed up!";
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                notificationOutbox.enqueue(admin, notification);
             }        }
     }
 
-    private String extractUserId(CloseableHttpResponse httpResp) throws AuthenticationException, IOException {
+    private VerifiedToken extractFacebookToken(CloseableHttpResponse httpResp) throws AuthenticationException, IOException {
         int code = httpResp.getStatusLine().getStatusCode();
         if (code != HttpStatus.SC_OK) {
             throw new AuthenticationException("Invalid credentials: " + httpResp.getStatusLine());
@@ -219,7 +258,13 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
         JSONObject dataObject = new JSONObject(result.toString());
         JSONObject userObj = (JSONObject) dataObject.get("data");
         httpResp.close();
-        return (String) userObj.get("user_id");
+        if (!userObj.optBoolean("is_valid", true)) {
+            throw new AuthenticationException("Invalid credentials: facebook reported the token as invalid");
+        }
+        // facebook sends 0 for tokens that don't expire
+        long expiresAtSecs = userObj.optLong("expires_at", 0);
+        Date expiresAt = expiresAtSecs > 0 ? new Date(expiresAtSecs * 1000) : null;
+        return new VerifiedToken((String) userObj.get("user_id"), expiresAt, null);
     }
 
     /*private User updateGoogleUser(User user, GoogleIdToken.Payload payload) {
@@ -0,0 +1,43 @@
+package com.iuxta.uxta.auth;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+
+import java.util.Date;
+
+/**
+ * The result of verifying an auth token with facebook or google. We hold on to these (not the user) so that repeat
+ * calls with the same token can skip the round trip to the identity provider.
+ */
+public class VerifiedToken {
+
+    // the facebook or google user id the token belongs to
+    private final String userId;
+
+    // when the identity provider says the token stops being valid, null if it never expires
+    private final Date expiresAt;
+
+    // only set for google tokens, used to fill in the profile if this is a brand new user
+    private final GoogleIdToken.Payload googlePayload;
+
+    public VerifiedToken(String userId, Date expiresAt, GoogleIdToken.Payload googlePayload) {
+        this.userId = userId;
+        this.expiresAt = expiresAt;
+        this.googlePayload = googlePayload;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public GoogleIdToken.Payload getGooglePayload() {
+        return googlePayload;
+    }
+
+    public boolean isExpired(Date now) {
+        return expiresAt != null && !expiresAt.after(now);
+    }
+}
@@ -0,0 +1,82 @@
+package com.iuxta.uxta.auth;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.dropwizard.auth.AuthenticationException;
+import io.dropwizard.util.Duration;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of tokens that facebook/google have already verified for us, keyed by auth method + token.
+ * Entries are dropped after the configured ttl or once the token itself expires, whichever comes first.
+ * Concurrent calls with the same token block on a single verification instead of each calling out.
+ */
+public class VerifiedTokenCache {
+
+    private final Cache<String, VerifiedToken> cache;
+
+    public VerifiedTokenCache(MetricRegistry metrics, long maxSize, Duration ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        metrics.register(MetricRegistry.name(VerifiedTokenCache.class, "hits"),
+                (Gauge<Long>) () -> cache.stats().hitCount());
+        metrics.register(MetricRegistry.name(VerifiedTokenCache.class, "misses"),
+                (Gauge<Long>) () -> cache.stats().missCount());
+        metrics.register(MetricRegistry.name(VerifiedTokenCache.class, "evictions"),
+                (Gauge<Long>) () -> cache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(VerifiedTokenCache.class, "size"),
+                (Gauge<Long>) cache::size);
+    }
+
+    /**
+     * Returns the cached verification for these credentials, or runs the verifier if there isn't a live one.
+     *
+     * @param credentials the credentials from the request headers
+     * @param verifier    does the actual round trip to facebook/google
+     * @return the verified token, never null
+     * @throws AuthenticationException if the token could not be verified or has expired
+     */
+    public VerifiedToken get(Credentials credentials, Callable<VerifiedToken> verifier) throws AuthenticationException {
+        String key = credentials.getMethod() + ":" + credentials.getToken();
+        VerifiedToken token = load(key, verifier);
+        if (token.isExpired(new Date())) {
+            // our copy outlived the token, make the identity provider decide again
+            cache.invalidate(key);
+            token = load(key, verifier);
+            if (token.isExpired(new Date())) {
+                cache.invalidate(key);
+                throw new AuthenticationException("Invalid credentials - token has expired");
+            }
+        }
+        return token;
+    }
+
+    public void invalidate(Credentials credentials) {
+        cache.invalidate(credentials.getMethod() + ":" + credentials.getToken());
+    }
+
+    private VerifiedToken load(String key, Callable<VerifiedToken> verifier) throws AuthenticationException {
+        try {
+            return cache.get(key, verifier);
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AuthenticationException) {
+                throw (AuthenticationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AuthenticationException(cause);
+        }
+    }
+}
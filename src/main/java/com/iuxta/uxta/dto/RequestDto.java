@@ -42,6 +42,14 @@ public class RequestDto {
 
     public List<String> photos;
 
+    // where the item is, the poster's home if not given
+    public Double latitude;
+
+    public Double longitude;
+
+    // meters from the point the feed was sorted by distance from
+    public Double distance;
+
     public RequestDto() {
 
     }
@@ -68,6 +76,11 @@ public class RequestDto {
         this.type = request.getType() != null ? request.getType().toString() : "renting";
         this.duplicate = request.getDuplicate();
         this.photos = request.getPhotos();
+        if (request.getLocation() != null) {
+            this.longitude = request.getLocation().getCoordinates()[0];
+            this.latitude = request.getLocation().getCoordinates()[1];
+        }
+        this.distance = request.getDistance();
     }
 
     public static List<RequestDto> transform(List<Request> requests) {
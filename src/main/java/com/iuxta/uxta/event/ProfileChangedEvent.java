@@ -0,0 +1,18 @@
+package com.iuxta.uxta.event;
+
+/**
+ * Posted on the domain event bus after a user's profile has been saved and the fields that changed have been recorded,
+ * so the copies of the user embedded in their requests can be brought up to date.
+ */
+public class ProfileChangedEvent {
+
+    private final String userId;
+
+    public ProfileChangedEvent(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+}
@@ -0,0 +1,18 @@
+package com.iuxta.uxta.event;
+
+/**
+ * Posted on the domain event bus after a request, one of its offers or its transaction has been saved, so anything
+ * derived from them (e.g. the users' history timelines) can be brought up to date.
+ */
+public class RequestChangedEvent {
+
+    private final String requestId;
+
+    public RequestChangedEvent(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+}
@@ -0,0 +1,39 @@
+package com.iuxta.uxta.event;
+
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.Response;
+import com.iuxta.uxta.model.User;
+
+/**
+ * Posted on the domain event bus once a new offer has been written to mongo. Subscribers run on the event thread,
+ * after the HTTP request that made the offer has moved on, and see events in the order they were posted.
+ */
+public class ResponseCreatedEvent {
+
+    private final Request request;
+
+    private final Response response;
+
+    private final User responder;
+
+    public ResponseCreatedEvent(Request request, Response response, User responder) {
+        this.request = request;
+        this.response = response;
+        this.responder = responder;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the response as saved, with its id set
+     */
+    public Response getResponse() {
+        return response;
+    }
+
+    public User getResponder() {
+        return responder;
+    }
+}
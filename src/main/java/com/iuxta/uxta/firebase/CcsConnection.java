@@ -0,0 +1,278 @@
+package com.iuxta.uxta.firebase;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.ReconnectionManager;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.jivesoftware.smackx.gcm.packet.GcmPacketExtension;
+import org.jivesoftware.smackx.ping.PingFailedListener;
+import org.jivesoftware.smackx.ping.PingManager;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One XMPP connection to CCS. {@link CcsServer} keeps a few of these and decides which one each message goes out on;
+ * this class only deals with the socket, the per-connection send window and whether CCS has asked us to drain it.
+ */
+class CcsConnection implements PingFailedListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CcsConnection.class);
+
+    private final CcsServer server;
+
+    private final String name;
+
+    private XMPPTCPConnection connection;
+
+    // one permit per message CCS still owes us an ack/nack for on this connection
+    private final Semaphore sendWindow = new Semaphore(CcsServer.MAX_PENDING_MESSAGES);
+
+    /**
+     * Indicates whether the connection is in draining state, which means that it
+     * will not accept any new downstream messages.
+     */
+    private volatile boolean draining = false;
+
+    CcsConnection(CcsServer server, String name) {
+        this.server = server;
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    void startDraining() {
+        draining = true;
+    }
+
+    boolean isAvailable() {
+        return !draining && connection != null && connection.isAuthenticated();
+    }
+
+    int pendingCount() {
+        return CcsServer.MAX_PENDING_MESSAGES - sendWindow.availablePermits();
+    }
+
+    boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return sendWindow.tryAcquire(timeout, unit);
+    }
+
+    boolean tryAcquire() {
+        return sendWindow.tryAcquire();
+    }
+
+    void release() {
+        sendWindow.release();
+    }
+
+    /**
+     * Sends a packet with contents provided.
+     */
+    void send(String jsonRequest) throws SmackException.NotConnectedException, InterruptedException {
+
+        Stanza request = new Message();
+        request.addExtension(new GcmPacketExtension(jsonRequest));
+
+        connection.sendStanza(request);
+    }
+
+    /**
+     * Connects to FCM Cloud Connection Server using the supplied credentials.
+     */
+    void connect() throws XMPPException, IOException, SmackException, InterruptedException {
+
+        XMPPTCPConnectionConfiguration config =
+                XMPPTCPConnectionConfiguration.builder()
+                        .setServiceName("localhost:8080")
+                        .setHost(server.getFcmServer())
+                        .setPort(server.getFcmPort())
+                       // .setCompressionEnabled(false)
+                       // .setConnectTimeout(30000)
+                        .setDebuggerEnabled(true)
+                        .setSecurityMode(ConnectionConfiguration.SecurityMode.ifpossible)
+                        .setSendPresence(false)
+                        .setSocketFactory(SSLSocketFactory.getDefault())
+                        .build();
+
+        connection = new XMPPTCPConnection(config);
+
+        ReconnectionManager.getInstanceFor(connection).enableAutomaticReconnection();
+                //.setReconnectionPolicy(ReconnectionManager.ReconnectionPolicy.RANDOM_INCREASING_DELAY);
+        //disable Roster as I don't think this is supported by GCM
+        Roster.getInstanceFor(connection).setRosterLoadedAtLogin(false);
+
+        connection.addConnectionListener(new ConnectionListener() {
+            @Override
+            public void connected(XMPPConnection connection) {
+                LOGGER.info("[" + name + "] Connected to CCS");
+            }
+
+            @Override
+            public void authenticated(XMPPConnection connection, boolean resumed) {
+                LOGGER.info("[" + name + "] Authenticated with CCS");
+            }
+
+            @Override
+            public void connectionClosed() {
+                server.retryInFlight(CcsConnection.this);
+                if (draining) {
+                    // we closed it ourselves after CCS asked us to, a replacement is already up
+                    LOGGER.info("[" + name + "] Drained connection to CCS closed");
+                    return;
+                }
+                try {
+                    LOGGER.info("[" + name + "] Connection to CCS closed. Attempting to reconnect now!");
+                    // Connect and authenticate with to XMPP server (GCM CCS in this case).
+                    login();
+                } catch (SmackException | IOException | XMPPException e) {
+                    LOGGER.error("[" + name + "] Unable to connect or login to GCM CCS: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                LOGGER.error("[" + name + "] Connection closed because of an error.", e);
+                server.retryInFlight(CcsConnection.this);
+            }
+
+            @Override
+            public void reconnectionSuccessful() {
+                LOGGER.info("[" + name + "] Reconnected to CCS");
+            }
+
+            @Override
+            public void reconnectingIn(int seconds) {
+                LOGGER.info("[" + name + "] Reconnecting to CCS in " + seconds);
+            }
+
+            @Override
+            public void reconnectionFailed(Exception e) {
+                LOGGER.error("[" + name + "] Reconnection to CCS failed", e);
+            }
+        });        // Handle incoming packets
+        connection.addAsyncStanzaListener(incomingStanzaListener, stanzaFilter);
+        // Log all outgoing packets
+        connection.addPacketInterceptor(outgoingStanzaInterceptor, stanzaFilter);
+
+        LOGGER.info("[" + name + "] Connecting...");
+        login();
+        PingManager.getInstanceFor(connection).registerPingFailedListener(this);
+    }
+
+    void disconnect() {
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private void login() throws XMPPException, IOException, SmackException {
+        connection.connect();
+        connection.login(server.getSenderId() + "@gcm.googleapis.com", server.getApiKey());
+        PingManager pingManager = PingManager
+                .getInstanceFor(connection);
+        pingManager.setPingInterval(600);
+    }
+
+    @Override
+    public void pingFailed() {
+        if (draining) {
+            return;
+        }
+        try {
+            LOGGER.info("[" + name + "] Ping to XMPP server failed!! Attempting to reconnect now!");
+            // Connect and authenticate with to XMPP server (GCM CCS in this case).
+            login();
+        } catch (SmackException | IOException | XMPPException e) {
+            LOGGER.error("[" + name + "] Unable to connect or login to GCM CCS: " + e.getMessage());
+        }
+    }
+
+    private final StanzaFilter stanzaFilter = new StanzaFilter() {
+
+        @Override
+        public boolean accept(Stanza stanza) {
+
+            if (stanza.getClass() == Stanza.class)
+                return true;
+            else {
+                if (stanza.getTo() != null)
+                    if (stanza.getTo().toString().startsWith(server.getProjectNumber()))
+                        return true;
+            }
+
+            return false;
+        }
+    };
+
+    private final StanzaListener incomingStanzaListener = new StanzaListener() {
+
+        @Override
+        public void processPacket(Stanza packet) {
+
+            LOGGER.info("Received: " + packet.toXML());
+
+            GcmPacketExtension gcmPacketExtension = GcmPacketExtension.from(packet);
+
+            String jsonString = gcmPacketExtension.getJson();
+
+            try {
+
+                JSONObject json = new JSONObject(jsonString);
+
+                // present for "ack"/"nack", null otherwise
+                String messageType = json.get("message_type").toString();
+
+                if (messageType == null) {
+                    // Normal upstream data message
+                    server.handleUpstreamMessage(json);
+
+                    // Send ACK to CCS
+                    String messageId = json.get("message_id").toString();
+                    String from = json.get("from").toString();
+                    String ack = CcsServer.createJsonAck(from, messageId);
+                    send(ack);
+                } else if ("ack".equals(messageType)) {
+                    // Process Ack
+                    server.handleAckReceipt(json);
+                } else if ("nack".equals(messageType)) {
+                    // Process Nack
+                    server.handleNackReceipt(json);
+                } else if ("control".equals(messageType)) {
+                    // Process control message
+                    server.handleControlMessage(CcsConnection.this, json);
+                } else {
+                    LOGGER.error("Unrecognized message type (%s)", messageType);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Failed to process packet", e);
+            }
+        }
+    };
+
+    private final StanzaListener outgoingStanzaInterceptor = new StanzaListener() {
+        @Override
+        public void processPacket(Stanza packet) {
+            LOGGER.info("Sent: {0} " + packet.toXML());
+        }
+    };
+}
@@ -1,36 +1,28 @@
 package com.iuxta.uxta.firebase;
 
-import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionListener;
-import org.jivesoftware.smack.ReconnectionManager;
 import org.jivesoftware.smack.SmackException;
-import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.StanzaFilter;
-import org.jivesoftware.smack.packet.Stanza;
-import org.jivesoftware.smack.tcp.XMPPTCPConnection;
-import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
-import org.jivesoftware.smackx.ping.PingFailedListener;
-import org.jivesoftware.smackx.ping.PingManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.jivesoftware.smack.packet.Message;
 
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
-import org.jivesoftware.smackx.gcm.packet.GcmPacketExtension;
-import org.jivesoftware.smack.roster.Roster;
 
 
 
 /**
  * Created by kerrk on 8/31/16.
  * CCS = cloud connection server
+ *
+ * Keeps a pool of {@link CcsConnection}s and sends each downstream message on the least loaded one. When CCS tells a
+ * connection to drain we stop using it, open a replacement and close it once its last ack comes back.
  */
-public class CcsServer implements PingFailedListener {
+public class CcsServer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CcsServer.class);
 
@@ -38,8 +30,6 @@ public class CcsServer implements PingFailedListener {
 
     private int fcmPort;
 
-    private XMPPTCPConnection connection;
-
     // project number from google developers console
     private String projectNumber;
 
@@ -54,22 +44,121 @@ public class CcsServer implements PingFailedListener {
 
     private String senderId;
 
+    // how many connections to keep open, not counting ones that are draining
+    private int poolSize = 1;
+
+    private final List<CcsConnection> connections = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    // CCS stops accepting messages from a connection once this many are waiting on an ack/nack
+    static final int MAX_PENDING_MESSAGES = 100;
+
+    static final long SEND_WINDOW_TIMEOUT_SECONDS = 30;
+
+    static final int MAX_SEND_ATTEMPTS = 5;
+
+    static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+
+    static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    // how long a message waits in memory for a free connection before it's handed back to the sender
+    static final long MAX_HOLD_MILLIS = 60000;
+
+    // nacks that mean "try again later", anything else (bad registration id etc) won't succeed on a resend
+    private static final Set<String> RETRYABLE_ERRORS = new HashSet<>(Arrays.asList(
+            "DEVICE_MESSAGE_RATE_EXCEEDED", "SERVICE_UNAVAILABLE"));
+
+    private final Map<String, PendingMessage> inFlight = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService retryScheduler;
+
+    // opens replacement connections, a slow connect or login mustn't hold up the held messages' retries
+    private final ScheduledExecutorService connector;
+
     /**
-     * Indicates whether the connection is in draining state, which means that it
-     * will not accept any new downstream messages.
+     * Told what finally happened to each downstream message. Messages CCS asks us to resend are only reported once
+     * they are acked or we give up on them.
      */
-    protected volatile boolean connectionDraining = false;
+    public interface DeliveryListener {
+        void delivered(String messageId);
+
+        /**
+         * CCS rejected the message for good, e.g. the registration id is no longer valid
+         */
+        void undeliverable(String messageId, String error);
+
+        /**
+         * The message couldn't be sent for now (no connection, or retries used up) and is no longer held in memory,
+         * it's up to the sender to try it again later
+         */
+        void notSent(String messageId, String error);
+    }
 
-    public CcsServer() {
+    private volatile DeliveryListener deliveryListener;
+
+    private static class PendingMessage {
+        private final String messageId;
+        private final String json;
+        private int attempts;
+        // the connection holding a window slot for this message
+        private CcsConnection connection;
+        // set while the message waits for a free connection, it's handed back after this
+        private long holdUntil;
 
+        private PendingMessage(String messageId, String json) {
+            this.messageId = messageId;
+            this.json = json;
+        }
+    }
+
+    public CcsServer() {
+        this(null, 0, null, null, null);
     }
 
     public CcsServer(String server, int port, String projectNum, String key, String sender) {
+        this(server, port, projectNum, key, sender, 1, Executors.newSingleThreadScheduledExecutor(),
+                Executors.newSingleThreadScheduledExecutor());
+    }
+
+    /**
+     * @param retryScheduler runs the held messages' retries
+     * @param connector      opens replacement connections
+     */
+    public CcsServer(String server, int port, String projectNum, String key, String sender, int poolSize,
+                     ScheduledExecutorService retryScheduler, ScheduledExecutorService connector) {
         fcmServer = server;
         fcmPort = port;
         projectNumber = projectNum;
         apiKey = key;
         senderId = sender;
+        this.poolSize = Math.max(1, poolSize);
+        this.retryScheduler = retryScheduler;
+        this.connector = connector;
+    }
+
+    public void setDeliveryListener(DeliveryListener deliveryListener) {
+        this.deliveryListener = deliveryListener;
+    }
+
+    String getFcmServer() {
+        return fcmServer;
+    }
+
+    int getFcmPort() {
+        return fcmPort;
+    }
+
+    String getProjectNumber() {
+        return projectNumber;
+    }
+
+    String getApiKey() {
+        return apiKey;
+    }
+
+    String getSenderId() {
+        return senderId;
     }
 
     /**
@@ -79,25 +168,131 @@ public class CcsServer implements PingFailedListener {
      */
     public boolean sendDownstreamMessage(String jsonRequest)
             throws SmackException.NotConnectedException, InterruptedException {
+        return sendDownstreamMessage(new JSONObject(jsonRequest).get("message_id").toString(), jsonRequest);
+    }
+
+    /**
+     * Sends a downstream message to FCM on the least loaded connection. CCS only allows
+     * {@link #MAX_PENDING_MESSAGES} messages without an ack/nack per connection, so if every connection is that busy
+     * this blocks until one comes back, for up to {@link #SEND_WINDOW_TIMEOUT_SECONDS}. If no connection is usable
+     * right now, e.g. they are all draining, or none frees up in time, the message is held and retried later.
+     *
+     * @param messageId the message_id inside jsonRequest, used to match up the ack/nack
+     * @return true if the message has been sent or queued to be sent.
+     */
+    public boolean sendDownstreamMessage(String messageId, String jsonRequest)
+            throws SmackException.NotConnectedException, InterruptedException {
 
-        if (!connectionDraining) {
-            send(jsonRequest);
+        PendingMessage message = new PendingMessage(messageId, jsonRequest);
+        CcsConnection connection = leastLoaded();
+        if (connection == null) {
+            LOGGER.info("No CCS connection available, holding message [" + messageId + "]");
+            scheduleRetry(message);
+            return true;
+        }
+        if (!connection.tryAcquire(SEND_WINDOW_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            LOGGER.warn("Holding downstream message [" + messageId + "], still waiting on acks for " +
+                    inFlight.size() + " messages");
+            scheduleRetry(message);
             return true;
         }
+        transmit(connection, message);
+        return true;
+    }
 
-        LOGGER.info("Dropping downstream message since the connection is draining");
-        return false;
+    private CcsConnection leastLoaded() {
+        CcsConnection best = null;
+        for (CcsConnection connection : connections) {
+            if (connection.isAvailable() && (best == null || connection.pendingCount() < best.pendingCount())) {
+                best = connection;
+            }
+        }
+        return best;
     }
 
     /**
-     * Sends a packet with contents provided.
+     * Sends a message on a connection we already hold a window slot for. The slot is given back if the send fails.
      */
-    protected void send(String jsonRequest) throws SmackException.NotConnectedException, InterruptedException {
+    private void transmit(CcsConnection connection, PendingMessage message)
+            throws SmackException.NotConnectedException, InterruptedException {
+        message.connection = connection;
+        inFlight.put(message.messageId, message);
+        try {
+            connection.send(message.json);
+        } catch (SmackException.NotConnectedException | InterruptedException | RuntimeException e) {
+            release(message.messageId);
+            throw e;
+        }
+    }
 
-        Stanza request = new Message();
-        request.addExtension(new GcmPacketExtension(jsonRequest));
+    /**
+     * Frees the window slot held by a message, if we were still waiting on it. A draining connection is closed once
+     * its last message is accounted for.
+     *
+     * @return the message, or null if it wasn't in flight
+     */
+    private PendingMessage release(String messageId) {
+        PendingMessage message = inFlight.remove(messageId);
+        if (message != null) {
+            CcsConnection connection = message.connection;
+            connection.release();
+            if (connection.isDraining() && connection.pendingCount() == 0 && connections.remove(connection)) {
+                LOGGER.info("[" + connection.getName() + "] drained, closing it");
+                connection.disconnect();
+            }
+        }
+        return message;
+    }
 
-        connection.sendStanza(request);
+    private void scheduleRetry(PendingMessage message) {
+        if (message.attempts >= MAX_SEND_ATTEMPTS) {
+            LOGGER.error("Giving up on message [" + message.messageId + "] after " + message.attempts + " attempts");
+            notifyNotSent(message.messageId, "gave up after " + message.attempts + " attempts");
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, INITIAL_RETRY_DELAY_MILLIS << message.attempts);
+        message.attempts++;
+        retryScheduler.schedule(() -> retry(message), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(PendingMessage message) {
+        CcsConnection connection = leastLoaded();
+        if (connection == null || !connection.tryAcquire()) {
+            long now = System.currentTimeMillis();
+            if (message.holdUntil == 0) {
+                message.holdUntil = now + MAX_HOLD_MILLIS;
+            } else if (now > message.holdUntil) {
+                // don't pile messages up in memory through a CCS outage, the sender keeps them durably
+                LOGGER.error("No CCS connection was free for message [" + message.messageId + "], handing it back");
+                notifyNotSent(message.messageId, "no CCS connection was free");
+                return;
+            }
+            // don't block the scheduler waiting for a slot, try again later
+            retryScheduler.schedule(() -> retry(message), INITIAL_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        message.holdUntil = 0;
+        try {
+            transmit(connection, message);
+        } catch (SmackException.NotConnectedException | InterruptedException | RuntimeException e) {
+            LOGGER.error("Could not resend message [" + message.messageId + "]: " + e.getMessage());
+            scheduleRetry(message);
+        }
+    }
+
+    /**
+     * Acks/nacks for messages sent on a connection that went away will never come, so free their slots and send
+     * them again on whichever connection is up.
+     */
+    void retryInFlight(CcsConnection closed) {
+        for (PendingMessage pending : new ArrayList<>(inFlight.values())) {
+            if (pending.connection == closed) {
+                PendingMessage message = release(pending.messageId);
+                if (message != null) {
+                    scheduleRetry(message);
+                }
+            }
+        }
     }
 
     /**
@@ -137,32 +332,64 @@ public class CcsServer implements PingFailedListener {
     /**
      * Handles an ACK.
      * <p>
-     * <p>Logs a INFO message, but subclasses could override it to
-     * properly handle ACKs.
+     * <p>Logs a INFO message and frees the message's slot in its connection's send window.
      */
     protected void handleAckReceipt(JSONObject json) {
         String messageId = json.get("message_id").toString();
         String from = json.get("from").toString();
         LOGGER.info("handleAckReceipt() from: " + from + ",messageId: " + messageId);
+        release(messageId);
+        DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.delivered(messageId);
+        }
+    }
+
+    private void notifyUndeliverable(String messageId, String error) {
+        DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.undeliverable(messageId, error);
+        }
+    }
+
+    private void notifyNotSent(String messageId, String error) {
+        DeliveryListener listener = deliveryListener;
+        if (listener != null) {
+            listener.notSent(messageId, error);
+        }
     }
 
     /**
      * Handles a NACK.
      * <p>
-     * <p>Logs a INFO message, but subclasses could override it to
-     * properly handle NACKs.
+     * <p>Logs a INFO message, frees the message's slot and resends it later if the error is temporary.
      */
     protected void handleNackReceipt(JSONObject json) {
         String messageId = json.get("message_id").toString();
         String from = json.get("from").toString();
-        LOGGER.info("handleNackReceipt() from: " + from + ",messageId: " + messageId);
+        String error = json.optString("error");
+        LOGGER.info("handleNackReceipt() from: " + from + ",messageId: " + messageId + ", error: " + error);
+        PendingMessage message = release(messageId);
+        if (!RETRYABLE_ERRORS.contains(error)) {
+            notifyUndeliverable(messageId, error);
+        } else if (message != null) {
+            scheduleRetry(message);
+        } else {
+            // we no longer hold it (e.g. it was already handed back), the sender can still try it again
+            notifyNotSent(messageId, error);
+        }
     }
 
-    protected void handleControlMessage(JSONObject json) {
+    protected void handleControlMessage(CcsConnection connection, JSONObject json) {
         LOGGER.info("handleControlMessage(): " + json);
         String controlType = json.get("control_type").toString();
         if ("CONNECTION_DRAINING".equals(controlType)) {
-            connectionDraining = true;
+            LOGGER.info("[" + connection.getName() + "] is draining, opening a replacement");
+            connection.startDraining();
+            if (connection.pendingCount() == 0 && connections.remove(connection)) {
+                connection.disconnect();
+            }
+            connector.execute(this::openConnection);
         } else {
             LOGGER.info("Unrecognized control type: %s. This could happen if new features are " + "added to the CCS protocol.",
                     controlType);
@@ -170,174 +397,33 @@ public class CcsServer implements PingFailedListener {
     }
 
     /**
-     * Connects to FCM Cloud Connection Server using the supplied credentials.
+     * Connects to FCM Cloud Connection Server using the supplied credentials, opening poolSize connections.
      */
     public void connect()
             throws XMPPException, IOException, SmackException, InterruptedException {
-
-        XMPPTCPConnectionConfiguration config =
-                XMPPTCPConnectionConfiguration.builder()
-                        .setServiceName("localhost:8080")
-                        .setHost(fcmServer)
-                        .setPort(fcmPort)
-                       // .setCompressionEnabled(false)
-                       // .setConnectTimeout(30000)
-                        .setDebuggerEnabled(true)
-                        .setSecurityMode(ConnectionConfiguration.SecurityMode.ifpossible)
-                        .setSendPresence(false)
-                        .setSocketFactory(SSLSocketFactory.getDefault())
-                        .build();
-
-        connection = new XMPPTCPConnection(config);
-
-        ReconnectionManager.getInstanceFor(connection).enableAutomaticReconnection();
-                //.setReconnectionPolicy(ReconnectionManager.ReconnectionPolicy.RANDOM_INCREASING_DELAY);
-        //disable Roster as I don't think this is supported by GCM
-        Roster.getInstanceFor(connection).setRosterLoadedAtLogin(false);
-
-        connection.addConnectionListener(new ConnectionListener() {
-            @Override
-            public void connected(XMPPConnection connection) {
-                LOGGER.info("Connected to CCS");
-            }
-
-            @Override
-            public void authenticated(XMPPConnection connection, boolean resumed) {
-                LOGGER.info("Authenticated with CCS");
-            }
-
-            @Override
-            public void connectionClosed() {
-                try {
-                    LOGGER.info("Connection to CCS closed. Attempting to reconnect now!");
-                    // Connect and authenticate with to XMPP server (GCM CCS in this case).
-                    connection.connect();
-                    connection.login(senderId + "@gcm.googleapis.com", apiKey);
-                    PingManager pingManager = PingManager
-                            .getInstanceFor(connection);
-                    pingManager.setPingInterval(600);
-                } catch (SmackException | IOException | XMPPException e) {
-                    LOGGER.error("Unable to connect or login to GCM CCS: " + e.getMessage());
-                }
-            }
-
-            @Override
-            public void connectionClosedOnError(Exception e) {
-                LOGGER.error("Connection closed because of an error.", e);
-            }
-
-            @Override
-            public void reconnectionSuccessful() {
-                LOGGER.info("Reconnected to CCS");
-            }
-
-            @Override
-            public void reconnectingIn(int seconds) {
-                LOGGER.info("Reconnecting to CCS in " + seconds);
-            }
-
-            @Override
-            public void reconnectionFailed(Exception e) {
-                LOGGER.error("Reconnection to CCS failed", e);
-            }
-        });        // Handle incoming packets
-        connection.addAsyncStanzaListener(incomingStanzaListener, stanzaFilter);
-        // Log all outgoing packets
-        connection.addPacketInterceptor(outgoingStanzaInterceptor, stanzaFilter);
-
-        LOGGER.info("Connecting...");
-        connection.connect();
-        connection.login(senderId + "@gcm.googleapis.com", apiKey);
-        PingManager pingManager = PingManager
-                .getInstanceFor(connection);
-        pingManager.registerPingFailedListener(this);
-        pingManager.setPingInterval(600);
+        for (int i = 0; i < poolSize; i++) {
+            CcsConnection connection = new CcsConnection(this, "ccs-" + connectionCount.incrementAndGet());
+            connection.connect();
+            connections.add(connection);
+        }
     }
 
-    @Override
-    public void pingFailed() {
+    /**
+     * Opens one more connection, used to replace a draining one. Keeps trying with backoff if CCS won't take it.
+     */
+    private void openConnection() {
+        CcsConnection connection = new CcsConnection(this, "ccs-" + connectionCount.incrementAndGet());
         try {
-            LOGGER.info("Ping to XMPP server failed!! Attempting to reconnect now!");
-            // Connect and authenticate with to XMPP server (GCM CCS in this case).
             connection.connect();
-            connection.login(senderId + "@gcm.googleapis.com", apiKey);
-            PingManager pingManager = PingManager
-                    .getInstanceFor(connection);
-            pingManager.setPingInterval(600);
-        } catch (SmackException | IOException | XMPPException e) {
-            LOGGER.error("Unable to connect or login to GCM CCS: " + e.getMessage());
+            connections.add(connection);
+        } catch (XMPPException | IOException | SmackException | InterruptedException e) {
+            LOGGER.error("[" + connection.getName() + "] Unable to connect or login to GCM CCS, trying again: " +
+                    e.getMessage());
+            connection.disconnect();
+            connector.schedule(this::openConnection, INITIAL_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
         }
     }
 
-    private final StanzaFilter stanzaFilter = new StanzaFilter() {
-
-        @Override
-        public boolean accept(Stanza stanza) {
-
-            if (stanza.getClass() == Stanza.class)
-                return true;
-            else {
-                if (stanza.getTo() != null)
-                    if (stanza.getTo().toString().startsWith(projectNumber))
-                        return true;
-            }
-
-            return false;
-        }
-    };
-
-    private final StanzaListener incomingStanzaListener = new StanzaListener() {
-
-        @Override
-        public void processPacket(Stanza packet) {
-
-            LOGGER.info("Received: " + packet.toXML());
-
-            GcmPacketExtension gcmPacketExtension = GcmPacketExtension.from(packet);
-
-            String jsonString = gcmPacketExtension.getJson();
-
-            try {
-
-                JSONObject json = new JSONObject(jsonString);
-
-                // present for "ack"/"nack", null otherwise
-                String messageType = json.get("message_type").toString();
-
-                if (messageType == null) {
-                    // Normal upstream data message
-                    handleUpstreamMessage(json);
-
-                    // Send ACK to CCS
-                    String messageId = json.get("message_id").toString();
-                    String from = json.get("from").toString();
-                    String ack = createJsonAck(from, messageId);
-                    send(ack);
-                } else if ("ack".equals(messageType)) {
-                    // Process Ack
-                    handleAckReceipt(json);
-                } else if ("nack".equals(messageType)) {
-                    // Process Nack
-                    handleNackReceipt(json);
-                } else if ("control".equals(messageType)) {
-                    // Process control message
-                    handleControlMessage(json);
-                } else {
-                    LOGGER.error("Unrecognized message type (%s)", messageType);
-                }
-            } catch (Exception e) {
-                LOGGER.error("Failed to process packet", e);
-            }
-        }
-    };
-
-    private final StanzaListener outgoingStanzaInterceptor = new StanzaListener() {
-        @Override
-        public void processPacket(Stanza packet) {
-            LOGGER.info("Sent: {0} " + packet.toXML());
-        }
-    };
-
     private static final ConnectionListener connectionStatusLogger = new ConnectionListener() {
 
         @Override
@@ -1,10 +1,8 @@
 package com.iuxta.uxta.firebase;
 
-import com.iuxta.uxta.dto.ResponseDto;
 import com.iuxta.uxta.exception.InternalServerException;
 import com.iuxta.uxta.model.User;
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,46 +23,33 @@ public class FirebaseUtils {
      * a notification if the app is running in the background, and show a snackbar message if it's in the foreground
      *
      * @param recipient
-     * @param dto
      * @param dataMessage
      * @param ccsServer
+     * @param messageId   the caller picks the message id so it can match up the ack/nack
+     * @return true if CCS took the message
      */
-    public static void sendFcmMessage(User recipient, ResponseDto dto, JSONObject dataMessage, CcsServer ccsServer) {
+    public static boolean sendFcmMessage(User recipient, NotificationPayload dataMessage, CcsServer ccsServer,
+                                         String messageId) {
         if (recipient.getFcmRegistrationId() == null) {
             String msg = "could not send notification/message to [" + recipient.getFirstName() + "] " +
                     "because they have not allowed messages.";
             LOGGER.error(msg);
             throw new InternalServerException(msg);
         }
-        String messageId = CcsServer.nextMessageId();
-        JSONObject payload = new JSONObject();
-
-        /*//TODO: rethink this, send users in-app messages?
-        if (hasMessage(dto)) {
-            payload.put("message", dto.messages.get(0).getContent());
-        }*/
         LOGGER.info("attempting to send message/notification to user [" + recipient.getName() + "] with fcm token [" +
                 recipient.getFcmRegistrationId() + "].");
         // if the user is using an ios device, send a notification instead of a data message
         boolean sendNotification = StringUtils.isNotBlank(recipient.getUserAgent()) &&
                 !recipient.getUserAgent().toLowerCase().contains("android");
-        String jsonMessage = null;
-        if (sendNotification) {
-            payload.put("body", dataMessage.get("message"));
-            payload.put("title", dataMessage.get("title"));
-            jsonMessage = CcsServer.createJsonMessage(recipient.getFcmRegistrationId(), messageId, dataMessage,
-                    payload, null, null, null);
-        } else {
-            jsonMessage = CcsServer.createJsonMessage(recipient.getFcmRegistrationId(), messageId, dataMessage,
-                    payload, null, null, null);
-        }
+        String jsonMessage = dataMessage.toFcmMessage(recipient.getFcmRegistrationId(), messageId, sendNotification);
         try {
-            Boolean sent = ccsServer.sendDownstreamMessage(jsonMessage);
+            Boolean sent = ccsServer.sendDownstreamMessage(messageId, jsonMessage);
             if (sent) {
                 LOGGER.info("Successfully sent message!");
             } else {
                 LOGGER.error("could not sent message :(");
             }
+            return sent;
         } catch (Exception e) {
             String msg = "could not send message, got error: " + e.getMessage();
             LOGGER.error(msg);
@@ -0,0 +1,118 @@
+package com.iuxta.uxta.firebase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.uxta.model.User;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.lifecycle.setup.LifecycleEnvironment;
+import org.mongojack.DBCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Sends the same notification to a lot of users (e.g. everyone in a community when something new is posted) without
+ * tying up request threads or the common fork join pool. One thread walks the user cursor a batch at a time and hands
+ * each recipient to a small pool of senders through a bounded queue; when the queue is full the walker waits, so we
+ * never have more than queueSize users in memory per fan-out.
+ */
+public class NotificationDispatcher implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private static final int CURSOR_BATCH_SIZE = 500;
+
+    private final CcsServer ccsServer;
+
+    private final BlockingQueue<Runnable> sendQueue;
+
+    private final ExecutorService senders;
+
+    private final ExecutorService fanOuts;
+
+    private final Meter sent;
+
+    private final Meter failed;
+
+    public NotificationDispatcher(CcsServer ccsServer, MetricRegistry metrics, LifecycleEnvironment lifecycle,
+                                  int senderThreads, int queueSize) {
+        this.ccsServer = ccsServer;
+        this.sendQueue = new ArrayBlockingQueue<>(queueSize);
+        this.senders = lifecycle.executorService("fcm-sender-%d").minThreads(senderThreads).maxThreads(senderThreads)
+                .workQueue(sendQueue).rejectedExecutionHandler((task, executor) -> {
+            // the queue is full, make the cursor walker wait for a free slot instead of dropping the send
+            try {
+                if (!executor.isShutdown()) {
+                    executor.getQueue().put(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while queueing notification", e);
+            }
+        }).build();
+        this.fanOuts = lifecycle.executorService("fcm-fan-out-%d").minThreads(1).maxThreads(1).build();
+        this.sent = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "sent"));
+        this.failed = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "failed"));
+        metrics.register(MetricRegistry.name(NotificationDispatcher.class, "queue-depth"),
+                (Gauge<Integer>) sendQueue::size);
+    }
+
+    /**
+     * Queues a notification for every user the cursor returns. Returns right away, the query itself is run on the
+     * fan-out thread.
+     *
+     * @param recipients   runs the user query, the cursor is closed once every user has been queued
+     * @param skip         users that match are not sent anything (e.g. the user who made the post)
+     * @param notification the data message, shared by every recipient so it must not be changed after this call
+     */
+    public void fanOut(Supplier<DBCursor<User>> recipients, Predicate<User> skip, NotificationPayload notification) {
+        // build the data json now rather than racing to do it on the sender threads
+        notification.toJson();
+        fanOuts.execute(() -> {
+            AtomicInteger queued = new AtomicInteger();
+            try (DBCursor<User> cursor = recipients.get()) {
+                cursor.batchSize(CURSOR_BATCH_SIZE);
+                while (cursor.hasNext()) {
+                    User user = cursor.next();
+                    if (skip.test(user) || user.getFcmRegistrationId() == null) {
+                        continue;
+                    }
+                    senders.execute(() -> send(user, notification));
+                    queued.incrementAndGet();
+                }
+            } catch (Exception e) {
+                LOGGER.error("Notification fan-out stopped after [" + queued.get() + "] users", e);
+            }
+            LOGGER.info("Queued [" + notification.get("type") + "] notification for [" + queued.get() + "] users");
+        });
+    }
+
+    private void send(User user, NotificationPayload notification) {
+        try {
+            FirebaseUtils.sendFcmMessage(user, notification, ccsServer, CcsServer.nextMessageId());
+            sent.mark();
+        } catch (Exception e) {
+            failed.mark();
+            LOGGER.error("Could not send notification to user [" + user.getId() + "]: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+    }
+
+    @Override
+    public void stop() throws Exception {
+        fanOuts.shutdown();
+        fanOuts.awaitTermination(30, TimeUnit.SECONDS);
+        senders.shutdown();
+        if (!senders.awaitTermination(30, TimeUnit.SECONDS)) {
+            LOGGER.warn("Dropping [" + senders.shutdownNow().size() + "] queued notifications on shutdown");
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.iuxta.uxta.firebase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.uxta.model.OutboxNotification;
+import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.UserCache;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.lifecycle.setup.LifecycleEnvironment;
+import io.dropwizard.util.Duration;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Mongo backed outbox for push notifications. {@link #enqueue} only writes a document, so HTTP requests don't wait on
+ * (or fail because of) FCM. A poller claims due notifications with findAndModify and hands them to a pool of workers
+ * that send them through the {@link CcsServer}; the ack/nack CCS sends back is recorded on the document.
+ *
+ * Delivery is at least once: a claim is a lease, and if the worker dies before recording the send the notification
+ * is picked up again once the lease runs out. CCS taking a message only means it's held in memory until acked, so a
+ * SENT notification that hears nothing back within {@link #ACK_TIMEOUT_MILLIS} is sent again too.
+ */
+public class NotificationOutbox implements Managed, CcsServer.DeliveryListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationOutbox.class);
+
+    static final int MAX_ATTEMPTS = 5;
+
+    static final long INITIAL_RETRY_DELAY_MILLIS = 5000;
+
+    static final long LEASE_MILLIS = 60000;
+
+    // a SENT notification with no ack or nack after this is sent again, CcsServer holds and retries a message for
+    // less than this, so it was lost (e.g. in a restart)
+    static final long ACK_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final JacksonDBCollection<OutboxNotification, String> outboxCollection;
+
+    private final UserCache userCache;
+
+    private final CcsServer ccsServer;
+
+    private final long pollIntervalMillis;
+
+    private final BlockingQueue<Runnable> workQueue;
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService poller;
+
+    private final Meter sent;
+
+    private final Meter failed;
+
+    public NotificationOutbox(JacksonDBCollection<OutboxNotification, String> outboxCollection,
+                              UserCache userCache, CcsServer ccsServer,
+                              MetricRegistry metrics, LifecycleEnvironment lifecycle, int workerThreads,
+                              Duration pollInterval) {
+        this.outboxCollection = outboxCollection;
+        this.userCache = userCache;
+        this.ccsServer = ccsServer;
+        this.pollIntervalMillis = pollInterval.toMilliseconds();
+        this.workQueue = new ArrayBlockingQueue<>(workerThreads * 2);
+        this.workers = lifecycle.executorService("outbox-worker-%d").minThreads(workerThreads)
+                .maxThreads(workerThreads).workQueue(workQueue).shutdownTime(Duration.seconds(30)).build();
+        this.poller = lifecycle.scheduledExecutorService("outbox-poller-%d").build();
+        this.sent = metrics.meter(MetricRegistry.name(NotificationOutbox.class, "sent"));
+        this.failed = metrics.meter(MetricRegistry.name(NotificationOutbox.class, "failed"));
+        metrics.register(MetricRegistry.name(NotificationOutbox.class, "pending"),
+                (Gauge<Long>) () -> outboxCollection.getCount(new BasicDBObject("status",
+                        OutboxNotification.Status.PENDING.name())));
+    }
+
+    /**
+     * Saves the notification to be sent to the recipient as soon as a worker gets to it.
+     *
+     * @param recipient    who to send to, their fcm token is looked up again when the notification is sent
+     * @param notification the data message
+     */
+    public void enqueue(User recipient, NotificationPayload notification) {
+        outboxCollection.insert(toOutbox(recipient.getId(), notification, new Date()));
+    }
+
+    /**
+     * Saves all of the notifications with one insert. A recipient can be in the list more than once.
+     *
+     * @param notifications who to send to and what
+     */
+    public void enqueueAll(List<Addressed> notifications) {
+        if (notifications.isEmpty()) {
+            return;
+        }
+        Date now = new Date();
+        List<OutboxNotification> outboxNotifications = new ArrayList<>(notifications.size());
+        for (Addressed notification : notifications) {
+            outboxNotifications.add(toOutbox(notification.recipientId, notification.notification, now));
+        }
+        outboxCollection.insert(outboxNotifications);
+    }
+
+    private static OutboxNotification toOutbox(String recipientId, NotificationPayload notification, Date now) {
+        OutboxNotification outboxNotification = new OutboxNotification();
+        outboxNotification.setRecipientId(recipientId);
+        outboxNotification.setData(notification.toJson());
+        outboxNotification.setStatus(OutboxNotification.Status.PENDING);
+        outboxNotification.setCreatedDate(now);
+        outboxNotification.setNextAttemptDate(now);
+        return outboxNotification;
+    }
+
+    @Override
+    public void start() throws Exception {
+        ccsServer.setDeliveryListener(this);
+        poller.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        poller.shutdown();
+        workers.shutdown();
+        // anything still queued stays SENDING in mongo and is picked up again after a restart
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void poll() {
+        try {
+            while (workQueue.remainingCapacity() > 0) {
+                OutboxNotification notification = claimNext();
+                if (notification == null) {
+                    return;
+                }
+                workers.execute(() -> send(notification));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Could not poll the notification outbox", e);
+        }
+    }
+
+    /**
+     * Claims the oldest due notification: PENDING ones whose retry delay is up, SENDING ones whose worker's lease ran
+     * out, or SENT ones that never got an ack or nack.
+     */
+    private OutboxNotification claimNext() {
+        Date now = new Date();
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("status", OutboxNotification.Status.PENDING.name())
+                .append("nextAttemptDate", new BasicDBObject("$lte", now)));
+        or.add(new BasicDBObject("status", OutboxNotification.Status.SENDING.name())
+                .append("lockedUntil", new BasicDBObject("$lt", now)));
+        or.add(new BasicDBObject("status", OutboxNotification.Status.SENT.name())
+                .append("nextAttemptDate", new BasicDBObject("$lte", now)));
+        DBObject query = new BasicDBObject("$or", or);
+        DBObject update = new BasicDBObject("$set", new BasicDBObject("status",
+                OutboxNotification.Status.SENDING.name())
+                .append("lockedUntil", new Date(now.getTime() + LEASE_MILLIS)))
+                .append("$inc", new BasicDBObject("attempts", 1));
+        return outboxCollection.findAndModify(query, null, new BasicDBObject("nextAttemptDate", 1), false, update,
+                true, false);
+    }
+
+    private void send(OutboxNotification notification) {
+        User recipient = userCache.findById(notification.getRecipientId());
+        if (recipient == null || recipient.getFcmRegistrationId() == null) {
+            markFailed(notification, "recipient has not allowed messages");
+            return;
+        }
+        String messageId = CcsServer.nextMessageId();
+        // record the id before sending, the ack can come back before we get to mark it SENT
+        update(notification, new BasicDBObject("messageId", messageId));
+        try {
+            if (FirebaseUtils.sendFcmMessage(recipient, NotificationPayload.fromJson(notification.getData()), ccsServer,
+                    messageId)) {
+                Date now = new Date();
+                outboxCollection.update(new BasicDBObject("_id", new ObjectId(notification.getId()))
+                                .append("status", OutboxNotification.Status.SENDING.name()),
+                        new BasicDBObject("$set", new BasicDBObject("status", OutboxNotification.Status.SENT.name())
+                                .append("sentDate", now)
+                                .append("nextAttemptDate", new Date(now.getTime() + ACK_TIMEOUT_MILLIS))));
+                sent.mark();
+                return;
+            }
+            retryLater(notification, "CCS did not take the message");
+        } catch (Exception e) {
+            retryLater(notification, e.getMessage());
+        }
+    }
+
+    private void retryLater(OutboxNotification notification, String error) {
+        if (notification.getAttempts() >= MAX_ATTEMPTS) {
+            markFailed(notification, error);
+            return;
+        }
+        long delay = INITIAL_RETRY_DELAY_MILLIS << (notification.getAttempts() - 1);
+        update(notification, new BasicDBObject("status", OutboxNotification.Status.PENDING.name())
+                .append("nextAttemptDate", new Date(System.currentTimeMillis() + delay))
+                .append("lastError", error));
+    }
+
+    private void markFailed(OutboxNotification notification, String error) {
+        LOGGER.error("Giving up on notification [" + notification.getId() + "] for user [" +
+                notification.getRecipientId() + "] after " + notification.getAttempts() + " attempts: " + error);
+        update(notification, new BasicDBObject("status", OutboxNotification.Status.FAILED.name())
+                .append("lastError", error));
+        failed.mark();
+    }
+
+    private void update(OutboxNotification notification, BasicDBObject changes) {
+        outboxCollection.update(new BasicDBObject("_id", new ObjectId(notification.getId())),
+                new BasicDBObject("$set", changes));
+    }
+
+    @Override
+    public void delivered(String messageId) {
+        outboxCollection.update(new BasicDBObject("messageId", messageId), new BasicDBObject("$set",
+                new BasicDBObject("status", OutboxNotification.Status.DELIVERED.name())
+                        .append("deliveredDate", new Date())));
+    }
+
+    @Override
+    public void undeliverable(String messageId, String error) {
+        outboxCollection.update(new BasicDBObject("messageId", messageId), new BasicDBObject("$set",
+                new BasicDBObject("status", OutboxNotification.Status.FAILED.name())
+                        .append("lastError", error)));
+    }
+
+    @Override
+    public void notSent(String messageId, String error) {
+        // the worker marked it SENT when CCS took it, put it back in line
+        OutboxNotification notification = outboxCollection.findOne(new BasicDBObject("messageId", messageId)
+                .append("status", OutboxNotification.Status.SENT.name()));
+        if (notification != null) {
+            retryLater(notification, error);
+        }
+    }
+
+    /**
+     * A notification and the _id of the user to send it to, for {@link #enqueueAll}.
+     */
+    public static class Addressed {
+        private final String recipientId;
+        private final NotificationPayload notification;
+
+        public Addressed(String recipientId, NotificationPayload notification) {
+            this.recipientId = recipientId;
+            this.notification = notification;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.iuxta.uxta.firebase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.iuxta.uxta.dto.RequestDto;
+import com.iuxta.uxta.dto.ResponseDto;
+import com.iuxta.uxta.exception.InternalServerException;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The data message of a push notification. FCM data values have to be strings, so the request/response dtos the app
+ * reads out of a notification are stored as json strings, written with writers that are created once and shared.
+ * The data json is only built once per payload, even when the payload goes to a whole community, and the FCM message
+ * around it is written in one pass with a JsonGenerator.
+ */
+public class NotificationPayload {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final ObjectWriter RESPONSE_WRITER = MAPPER.writerFor(ResponseDto.class);
+
+    private static final ObjectWriter REQUEST_WRITER = MAPPER.writerFor(RequestDto.class);
+
+    private static final ObjectReader READER = MAPPER.readerFor(new TypeReference<LinkedHashMap<String, String>>() {
+    });
+
+    private final Map<String, String> fields;
+
+    // the data json, built the first time it's needed
+    private String json;
+
+    public NotificationPayload() {
+        this.fields = new LinkedHashMap<>();
+    }
+
+    private NotificationPayload(Map<String, String> fields, String json) {
+        this.fields = fields;
+        this.json = json;
+    }
+
+    /**
+     * Sets a data field, a null value removes it.
+     *
+     * @return this payload
+     */
+    public NotificationPayload put(String key, String value) {
+        if (value == null) {
+            fields.remove(key);
+        } else {
+            fields.put(key, value);
+        }
+        json = null;
+        return this;
+    }
+
+    public NotificationPayload putResponse(ResponseDto response) throws JsonProcessingException {
+        return put("response", RESPONSE_WRITER.writeValueAsString(response));
+    }
+
+    public NotificationPayload putRequest(RequestDto request) throws JsonProcessingException {
+        return put("request", REQUEST_WRITER.writeValueAsString(request));
+    }
+
+    public String get(String key) {
+        return fields.get(key);
+    }
+
+    /**
+     * @return the data message as json
+     */
+    public String toJson() {
+        if (json == null) {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = MAPPER.getFactory().createGenerator(writer)) {
+                generator.writeStartObject();
+                for (Map.Entry<String, String> field : fields.entrySet()) {
+                    generator.writeStringField(field.getKey(), field.getValue());
+                }
+                generator.writeEndObject();
+            } catch (IOException e) {
+                throw new InternalServerException("Could not write notification payload: " + e.getMessage());
+            }
+            json = writer.toString();
+        }
+        return json;
+    }
+
+    public static NotificationPayload fromJson(String json) throws IOException {
+        return new NotificationPayload(READER.readValue(json), json);
+    }
+
+    /**
+     * Writes the downstream FCM message for one recipient, with this payload as its data.
+     *
+     * @param to               the recipient's registration id
+     * @param messageId        unique id CCS sends back in the ack/nack
+     * @param showNotification true to also send title/message as a notification the OS shows (for iOS devices)
+     * @return JSON encoded FCM message
+     */
+    public String toFcmMessage(String to, String messageId, boolean showNotification) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField("to", to);
+            generator.writeStringField("message_id", messageId);
+            generator.writeFieldName("data");
+            generator.writeRawValue(toJson());
+            generator.writeObjectFieldStart("notification");
+            if (showNotification) {
+                generator.writeStringField("body", fields.get("message"));
+                generator.writeStringField("title", fields.get("title"));
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new InternalServerException("Could not write FCM message: " + e.getMessage());
+        }
+        return writer.toString();
+    }
+}
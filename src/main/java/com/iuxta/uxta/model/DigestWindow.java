@@ -0,0 +1,71 @@
+package com.iuxta.uxta.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Date;
+
+/**
+ * How far a scheduled digest has got, see {@link com.iuxta.uxta.service.RecentRequestsDigest}. One per digest.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DigestWindow {
+
+    /**
+     * the digest's name
+     */
+    private String id;
+
+    /**
+     * posts before this have been sent, the next window starts here
+     */
+    private Date end;
+
+    /**
+     * set while a server is sending the window after end, no other server can claim it until then
+     */
+    private Date claimedUntil;
+
+    /**
+     * how many notifications the last window enqueued
+     */
+    private Integer sentCount;
+
+    public DigestWindow() {
+
+    }
+
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    public Date getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(Date claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
+    public Integer getSentCount() {
+        return sentCount;
+    }
+
+    public void setSentCount(Integer sentCount) {
+        this.sentCount = sentCount;
+    }
+}
@@ -0,0 +1,70 @@
+package com.iuxta.uxta.model;
+
+import com.iuxta.uxta.exception.BadRequestException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Continuation token for a user's history. History is ordered by rank (open transactions, then open items, then
+ * everything else), then newest first, then by id, and the cursor remembers those three values for the last entry on
+ * the page. Sent back to clients in the {@link PageCursor#HEADER} header like the request feed cursor.
+ */
+public class HistoryCursor {
+
+    private final int rank;
+
+    private final Date date;
+
+    private final String id;
+
+    private HistoryCursor(int rank, Date date, String id) {
+        this.rank = rank;
+        this.date = date;
+        this.id = id;
+    }
+
+    public static HistoryCursor after(TimelineEntry last) {
+        return new HistoryCursor(last.getRank(), last.getSortDate(), last.getId());
+    }
+
+    public static HistoryCursor decode(String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = value.split(":");
+            if (parts.length == 3 && ObjectId.isValid(parts[2])) {
+                return new HistoryCursor(Integer.parseInt(parts[0]), new Date(Long.parseLong(parts[1])), parts[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        throw new BadRequestException("Invalid cursor [" + token + "]");
+    }
+
+    public String encode() {
+        String value = rank + ":" + date.getTime() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static BasicDBObject sort() {
+        return new BasicDBObject("rank", 1).append("sortDate", -1).append("_id", -1);
+    }
+
+    /**
+     * Restricts a timeline query to entries that come after this cursor in {@link #sort()} order.
+     *
+     * @param query
+     */
+    public void addToQuery(BasicDBObject query) {
+        ObjectId lastId = new ObjectId(id);
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("rank", new BasicDBObject("$gt", rank)));
+        or.add(new BasicDBObject("rank", rank).append("sortDate", new BasicDBObject("$lt", date)));
+        or.add(new BasicDBObject("rank", rank).append("sortDate", date).append("_id", new BasicDBObject("$lt", lastId)));
+        query.put("$or", or);
+    }
+}
@@ -0,0 +1,91 @@
+package com.iuxta.uxta.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ids of a user's open requests, pending offers and open transactions, so the limits on how many they can have
+ * open can be checked and claimed with a single update. Kept up to date by
+ * {@link com.iuxta.uxta.service.OpenItemCounter}.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class OpenItems {
+
+    /**
+     * the user's _id
+     */
+    private String id;
+
+    private List<String> requests = new ArrayList<>();
+
+    private List<String> offers = new ArrayList<>();
+
+    private List<String> transactions = new ArrayList<>();
+
+    /**
+     * requests and transactions together, for the limit on both
+     */
+    private List<String> requestsAndTransactions = new ArrayList<>();
+
+    /**
+     * offers and transactions together, for the limit on both
+     */
+    private List<String> offersAndTransactions = new ArrayList<>();
+
+    public OpenItems() {
+
+    }
+
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public List<String> getRequests() {
+        return requests;
+    }
+
+    public void setRequests(List<String> requests) {
+        this.requests = requests;
+    }
+
+    public List<String> getOffers() {
+        return offers;
+    }
+
+    public void setOffers(List<String> offers) {
+        this.offers = offers;
+    }
+
+    public List<String> getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(List<String> transactions) {
+        this.transactions = transactions;
+    }
+
+    public List<String> getRequestsAndTransactions() {
+        return requestsAndTransactions;
+    }
+
+    public void setRequestsAndTransactions(List<String> requestsAndTransactions) {
+        this.requestsAndTransactions = requestsAndTransactions;
+    }
+
+    public List<String> getOffersAndTransactions() {
+        return offersAndTransactions;
+    }
+
+    public void setOffersAndTransactions(List<String> offersAndTransactions) {
+        this.offersAndTransactions = offersAndTransactions;
+    }
+}
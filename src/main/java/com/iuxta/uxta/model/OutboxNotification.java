@@ -0,0 +1,158 @@
+package com.iuxta.uxta.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.mongojack.ObjectId;
+
+import java.util.Date;
+
+/**
+ * A push notification waiting to go out (or that already went out) through FCM. Services add these and the
+ * {@link com.iuxta.uxta.firebase.NotificationOutbox} sends them, so a notification survives a restart or a dropped
+ * CCS connection.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class OutboxNotification {
+
+    private String id;
+
+    private String recipientId;
+
+    /**
+     * the data message as a json string, JSONObject doesn't map to a mongo document on its own
+     */
+    private String data;
+
+    private Status status;
+
+    private int attempts;
+
+    private Date createdDate;
+
+    /**
+     * when a PENDING notification can be picked up again after a failed attempt, or a SENT one that never got an
+     * ack or nack
+     */
+    private Date nextAttemptDate;
+
+    /**
+     * a worker has claimed this notification until this time, if it's still SENDING after that the worker is assumed
+     * dead and someone else sends it
+     */
+    private Date lockedUntil;
+
+    /**
+     * the message_id we sent to CCS, used to match the ack/nack that comes back
+     */
+    private String messageId;
+
+    private Date sentDate;
+
+    private Date deliveredDate;
+
+    private String lastError;
+
+    public enum Status {
+        PENDING, SENDING, SENT, DELIVERED, FAILED
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRecipientId() {
+        return recipientId;
+    }
+
+    public void setRecipientId(String recipientId) {
+        this.recipientId = recipientId;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(Date createdDate) {
+        this.createdDate = createdDate;
+    }
+
+    public Date getNextAttemptDate() {
+        return nextAttemptDate;
+    }
+
+    public void setNextAttemptDate(Date nextAttemptDate) {
+        this.nextAttemptDate = nextAttemptDate;
+    }
+
+    public Date getLockedUntil() {
+        return lockedUntil;
+    }
+
+    public void setLockedUntil(Date lockedUntil) {
+        this.lockedUntil = lockedUntil;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public Date getSentDate() {
+        return sentDate;
+    }
+
+    public void setSentDate(Date sentDate) {
+        this.sentDate = sentDate;
+    }
+
+    public Date getDeliveredDate() {
+        return deliveredDate;
+    }
+
+    public void setDeliveredDate(Date deliveredDate) {
+        this.deliveredDate = deliveredDate;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
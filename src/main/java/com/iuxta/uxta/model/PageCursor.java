@@ -0,0 +1,90 @@
+package com.iuxta.uxta.model;
+
+import com.iuxta.uxta.exception.BadRequestException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Opaque continuation token for paging through requests without skip(). For the "newest" sort it remembers the
+ * (postDate, _id) of the last request on the page, otherwise just the _id, and the next page starts right after it.
+ * Clients get the token in the X-Next-Cursor header and pass it back as the "cursor" query param.
+ */
+public class PageCursor {
+
+    public static final String HEADER = "X-Next-Cursor";
+
+    private final Date postDate;
+
+    private final String id;
+
+    private PageCursor(Date postDate, String id) {
+        this.postDate = postDate;
+        this.id = id;
+    }
+
+    /**
+     * @param last   the last request on the current page
+     * @param newest true if the page was sorted by postDate, false if it was sorted by _id
+     */
+    public static PageCursor after(Request last, boolean newest) {
+        return new PageCursor(newest ? last.getPostDate() : null, last.getId());
+    }
+
+    /**
+     * @param token  the X-Next-Cursor header from the previous page
+     * @param newest true if this page is sorted by postDate, false if it's sorted by _id; a cursor from the other sort
+     *               is rejected rather than returning the wrong page
+     */
+    public static PageCursor decode(String token, boolean newest) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = value.split(":");
+            if (!newest && parts.length == 2 && parts[0].equals("i") && ObjectId.isValid(parts[1])) {
+                return new PageCursor(null, parts[1]);
+            } else if (newest && parts.length == 3 && parts[0].equals("p") && ObjectId.isValid(parts[2])) {
+                return new PageCursor(new Date(Long.parseLong(parts[1])), parts[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        throw new BadRequestException("Invalid cursor [" + token + "]");
+    }
+
+    public String encode() {
+        String value = postDate != null ? "p:" + postDate.getTime() + ":" + id : "i:" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static BasicDBObject newestSort() {
+        return new BasicDBObject("postDate", -1).append("_id", -1);
+    }
+
+    public static BasicDBObject idSort() {
+        return new BasicDBObject("_id", 1);
+    }
+
+    /**
+     * Restricts the query to requests that come after this cursor in {@link #newestSort()} or {@link #idSort()}
+     * order. The postDate condition is added under $and so it doesn't collide with any $or already on the query.
+     *
+     * @param query
+     */
+    public void addToQuery(BasicDBObject query) {
+        ObjectId lastId = new ObjectId(id);
+        if (postDate == null) {
+            query.put("_id", new BasicDBObject("$gt", lastId));
+            return;
+        }
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("postDate", new BasicDBObject("$lt", postDate)));
+        or.add(new BasicDBObject("postDate", postDate).append("_id", new BasicDBObject("$lt", lastId)));
+        BasicDBList and = query.containsField("$and") ? (BasicDBList) query.get("$and") : new BasicDBList();
+        and.add(new BasicDBObject("$or", or));
+        query.put("$and", and);
+    }
+}
@@ -0,0 +1,83 @@
+package com.iuxta.uxta.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Progress marker for copying a user's profile changes into their requests, see
+ * {@link com.iuxta.uxta.service.ProfileFanoutService}. One per user.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ProfileFanout {
+
+    /**
+     * the user's _id
+     */
+    private String id;
+
+    /**
+     * user fields that changed and haven't been copied to the requests yet, empty when they're up to date
+     */
+    private List<String> fields;
+
+    /**
+     * when fields were last added
+     */
+    private Date requestedDate;
+
+    private Date appliedDate;
+
+    /**
+     * how many requests the last fan-out updated
+     */
+    private Integer appliedCount;
+
+    public ProfileFanout() {
+
+    }
+
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public Date getRequestedDate() {
+        return requestedDate;
+    }
+
+    public void setRequestedDate(Date requestedDate) {
+        this.requestedDate = requestedDate;
+    }
+
+    public Date getAppliedDate() {
+        return appliedDate;
+    }
+
+    public void setAppliedDate(Date appliedDate) {
+        this.appliedDate = appliedDate;
+    }
+
+    public Integer getAppliedCount() {
+        return appliedCount;
+    }
+
+    public void setAppliedCount(Integer appliedCount) {
+        this.appliedCount = appliedCount;
+    }
+}
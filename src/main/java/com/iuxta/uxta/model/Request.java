@@ -14,7 +14,7 @@ import java.util.List;
  * Created by kerrk on 7/26/16.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class Request implements Serializable {
+public class Request implements Serializable, VersionedDocument {
 
     private String id;
 
@@ -31,6 +31,12 @@ public class Request implements Serializable {
 
     private Date expireDate;
 
+    /**
+     * When the ExpirySweeper closed it because its expireDate passed, null if it hasn't or it was closed for another
+     * reason
+     */
+    private Date expiredDate;
+
     private Category category;
 
     @Deprecated
@@ -52,6 +58,14 @@ public class Request implements Serializable {
 
     private List<String> photos;
 
+    // see VersionedDocument
+    private Long version;
+
+    /**
+     * Meters from the point a feed was sorted by distance from, read from $geoNear's output and never saved
+     */
+    private Double distance;
+
     public Request() {
 
     }
@@ -108,6 +122,14 @@ public class Request implements Serializable {
         this.expireDate = expireDate;
     }
 
+    public Date getExpiredDate() {
+        return expiredDate;
+    }
+
+    public void setExpiredDate(Date expiredDate) {
+        this.expiredDate = expiredDate;
+    }
+
     public Category getCategory() {
         return category;
     }
@@ -214,4 +236,22 @@ public class Request implements Serializable {
     public void setCommunityId(String communityId) {
         this.communityId = communityId;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @JsonIgnore
+    public Double getDistance() {
+        return distance;
+    }
+
+    @JsonProperty
+    public void setDistance(Double distance) {
+        this.distance = distance;
+    }
 }
@@ -14,7 +14,7 @@ import java.util.List;
  * Created by kerrk on 9/2/16.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class Response implements Serializable {
+public class Response implements Serializable, VersionedDocument {
 
     private String id;
 
@@ -84,6 +84,9 @@ public class Response implements Serializable {
 
     private List<String> photos;
 
+    // see VersionedDocument
+    private Long version;
+
     public String getDescription() {
         return description;
     }
@@ -294,4 +297,12 @@ public class Response implements Serializable {
     public void setPhotos(List<String> photos) {
         this.photos = photos;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
 }
@@ -0,0 +1,151 @@
+package com.iuxta.uxta.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.iuxta.uxta.dto.HistoryDto;
+import org.mongojack.ObjectId;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * One item in a user's history, as they see it: a request they posted with the offers on it, or an offer they made
+ * with the request it was made on. Kept up to date by {@link com.iuxta.uxta.service.HistoryService} whenever the
+ * request, its offers or its transaction change, so reading a page of history is a single query.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TimelineEntry implements VersionedDocument {
+
+    private String id;
+
+    /**
+     * the user whose history this is
+     */
+    private String userId;
+
+    private String requestId;
+
+    /**
+     * the user's offer, null when the entry is for the user's own request
+     */
+    private String responseId;
+
+    /**
+     * who posted the request when the entry is for an offer, so offers on blocked users' requests can be left out
+     */
+    private String otherUserId;
+
+    /**
+     * "requests", "offers" or "transactions"
+     */
+    private String type;
+
+    /**
+     * "open" and/or "closed", whichever status filters this entry shows up under
+     */
+    private List<String> statuses;
+
+    /**
+     * 0 for open transactions, 1 for open requests/offers, 2 for everything else
+     */
+    private int rank;
+
+    private Date sortDate;
+
+    private HistoryDto history;
+
+    // see VersionedDocument
+    private Long version;
+
+    @ObjectId
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public void setResponseId(String responseId) {
+        this.responseId = responseId;
+    }
+
+    public String getOtherUserId() {
+        return otherUserId;
+    }
+
+    public void setOtherUserId(String otherUserId) {
+        this.otherUserId = otherUserId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public List<String> getStatuses() {
+        return statuses;
+    }
+
+    public void setStatuses(List<String> statuses) {
+        this.statuses = statuses;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    public Date getSortDate() {
+        return sortDate;
+    }
+
+    public void setSortDate(Date sortDate) {
+        this.sortDate = sortDate;
+    }
+
+    public HistoryDto getHistory() {
+        return history;
+    }
+
+    public void setHistory(HistoryDto history) {
+        this.history = history;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+}
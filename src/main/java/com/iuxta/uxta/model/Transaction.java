@@ -12,7 +12,7 @@ import java.util.Date;
  * Created by kerrk on 9/22/16.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class Transaction implements Serializable {
+public class Transaction implements Serializable, VersionedDocument {
 
     private String id;
 
@@ -89,6 +89,9 @@ public class Transaction implements Serializable {
 
     private String buyerId;
 
+    // see VersionedDocument
+    private Long version;
+
     @ObjectId
     @JsonProperty("_id")
     public String getId() {
@@ -285,6 +288,14 @@ public class Transaction implements Serializable {
         this.buyerId = buyerId;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     /**
      * if the users forgot to scan/enter codes on exchange or return, they can manually enter the times
      * both users will need to accept the exchange/return occurred
@@ -0,0 +1,14 @@
+package com.iuxta.uxta.model;
+
+/**
+ * A document whose version changes on every save, see {@link com.iuxta.uxta.UxtaUtils#nextVersion(Long)}. The version
+ * is used as the ETag for conditional GETs, so a save that doesn't change it leaves clients with stale 304s. Save and
+ * insert these with {@link com.iuxta.uxta.UxtaUtils#saveVersioned} and
+ * {@link com.iuxta.uxta.UxtaUtils#insertVersioned} rather than on the collection directly.
+ */
+public interface VersionedDocument {
+
+    Long getVersion();
+
+    void setVersion(Long version);
+}
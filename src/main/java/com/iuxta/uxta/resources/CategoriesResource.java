@@ -5,12 +5,13 @@ import com.iuxta.uxta.dto.CategoryDto;
 import com.iuxta.uxta.exception.NotFoundException;
 import com.iuxta.uxta.model.Category;
 import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.CategorySnapshot;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
+import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
-import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 
@@ -21,8 +22,12 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
-import java.util.List;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 
 /**
  * Created by kerrk on 8/19/16.
@@ -32,14 +37,23 @@ import java.util.List;
 public class CategoriesResource {
 
     private JacksonDBCollection<Category, String> categoriesCollection;
+    private CategorySnapshot categorySnapshot;
 
-    public CategoriesResource(JacksonDBCollection<Category, String> categoriesCollection) {
+    public CategoriesResource(JacksonDBCollection<Category, String> categoriesCollection,
+                              CategorySnapshot categorySnapshot) {
         this.categoriesCollection = categoriesCollection;
+        this.categorySnapshot = categorySnapshot;
     }
 
     @GET
     @Produces(value = MediaType.APPLICATION_JSON)
     @Timed
+    @ApiOperation(
+            value = "Get all categories",
+            notes = "Sends an ETag, send it back in If-None-Match to get a 304 if nothing has changed",
+            response = CategoryDto.class,
+            responseContainer = "List"
+    )
     @ApiImplicitParams({ @ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
             dataType = "string",
@@ -48,11 +62,16 @@ public class CategoriesResource {
                     value = "the authentication method, either \"facebook\" (default if empty) or \"google\"",
                     dataType = "string",
                     paramType = "header") })
-    public List<CategoryDto> getCategories(@Auth @ApiParam(hidden=true) User principal) {
-        DBCursor categoriesRequests = categoriesCollection.find();
-        List<Category> categories =  categoriesRequests.toArray();
-        categoriesRequests.close();
-        return CategoryDto.transform(categories);
+    public Response getCategories(@Auth @ApiParam(hidden=true) User principal, @Context Request request) {
+        EntityTag etag = categorySnapshot.getETag();
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setPrivate(true);
+        cacheControl.setNoCache(true);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.cacheControl(cacheControl).build();
+        }
+        return Response.ok(categorySnapshot.getCategories()).tag(etag).cacheControl(cacheControl).build();
     }
 
     @GET
@@ -68,7 +87,7 @@ public class CategoriesResource {
                     dataType = "string",
                     paramType = "header") })
     public CategoryDto getCategory(@Auth @ApiParam(hidden=true) User principal, @PathParam("id") String id) {
-        Category category = categoriesCollection.findOneById(id);
+        Category category = categorySnapshot.get(id);
         if (category == null) {
             throw new NotFoundException("Request [" + id + "] was not found.");
         }
@@ -99,6 +118,7 @@ public class CategoriesResource {
         cat.setExamples(category.examples);
         WriteResult<Category, String> newCategory = categoriesCollection.insert(cat);
         cat = newCategory.getSavedObject();
+        categorySnapshot.reload();
         return new CategoryDto(cat);
     }
 
@@ -0,0 +1,215 @@
+package com.iuxta.uxta.resources;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.Response;
+import com.iuxta.uxta.model.Transaction;
+import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.HistoryService;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ETags for the {@link Versioned} GETs that clients poll while a deal is in progress. The tag is a hash of the
+ * principal, the url and the ids and versions of the documents behind the response, which are read with projections
+ * before the resource method runs. If it matches If-None-Match the client gets a 304 and the method never runs,
+ * otherwise the method runs as usual and the tag is added to its response.
+ *
+ * The checks run after authentication but before the resource's own access checks, so each lookup makes the same
+ * access check from the fields it reads and skips the shortcut (letting the resource method answer) when it fails.
+ */
+public class ConditionalGetFeature implements DynamicFeature {
+
+    private static final String ETAG_PROPERTY = ConditionalGetFeature.class.getName() + ".etag";
+
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private JacksonDBCollection<Transaction, String> transactionCollection;
+    private HistoryService historyService;
+
+    public ConditionalGetFeature(JacksonDBCollection<Request, String> requestCollection,
+                                 JacksonDBCollection<Response, String> responseCollection,
+                                 JacksonDBCollection<Transaction, String> transactionCollection,
+                                 HistoryService historyService) {
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.transactionCollection = transactionCollection;
+        this.historyService = historyService;
+    }
+
+    @Override
+    public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+        Versioned versioned = resourceInfo.getResourceMethod().getAnnotation(Versioned.class);
+        if (versioned != null) {
+            context.register(new ConditionalGetFilter(versioned.value()));
+        }
+    }
+
+    /**
+     * @return the ids and versions behind the response, or null to skip the check (not found, no access)
+     */
+    private List<Object> getVersions(Versioned.Source source, ContainerRequestContext requestContext, User principal) {
+        MultivaluedMap<String, String> path = requestContext.getUriInfo().getPathParameters();
+        MultivaluedMap<String, String> query = requestContext.getUriInfo().getQueryParameters();
+        switch (source) {
+            case REQUEST:
+                return getRequestVersions(path.getFirst("requestId"));
+            case RESPONSES:
+                return getResponsesVersions(path.getFirst("requestId"), query.getFirst("responder"), principal);
+            case TRANSACTION:
+                return getTransactionVersions(path.getFirst("transactionId"), principal);
+            case HISTORY:
+                return getHistoryVersions(path.getFirst("id"), query, principal);
+            default:
+                return null;
+        }
+    }
+
+    private List<Object> getRequestVersions(String requestId) {
+        if (!ObjectId.isValid(requestId)) {
+            return null;
+        }
+        Request request = requestCollection.findOneById(requestId, DBProjection.include("version"));
+        if (request == null) {
+            return null;
+        }
+        List<Object> versions = new ArrayList<>();
+        versions.add(request.getVersion());
+        return versions;
+    }
+
+    private List<Object> getResponsesVersions(String requestId, String seller, User principal) {
+        if (!ObjectId.isValid(requestId)) {
+            return null;
+        }
+        Request request = requestCollection.findOneById(requestId, DBProjection.include("user._id"));
+        if (request == null || request.getUser() == null) {
+            return null;
+        }
+        boolean isSellerMe = seller != null && (seller.equals("me") || seller.equals(principal.getId()));
+        if (!principal.getId().equals(request.getUser().getId()) && !isSellerMe) {
+            return null;
+        }
+        BasicDBObject query = new BasicDBObject("requestId", requestId);
+        if (seller != null) {
+            query.append("sellerId", seller.equals("me") ? principal.getId() : seller);
+        }
+        List<Object> versions = new ArrayList<>();
+        DBCursor<Response> responses = responseCollection.find(query, DBProjection.include("_id", "version"))
+                .sort(new BasicDBObject("responseTime", -1));
+        responses.forEach(r -> {
+            versions.add(r.getId());
+            versions.add(r.getVersion());
+        });
+        responses.close();
+        return versions;
+    }
+
+    private List<Object> getTransactionVersions(String transactionId, User principal) {
+        if (!ObjectId.isValid(transactionId)) {
+            return null;
+        }
+        Transaction transaction = transactionCollection.findOneById(transactionId,
+                DBProjection.include("version", "buyerId", "sellerId"));
+        // transactions from before buyerId/sellerId were stored can't be checked without the request and response
+        if (transaction == null || (!principal.getId().equals(transaction.getBuyerId()) &&
+                !principal.getId().equals(transaction.getSellerId()))) {
+            return null;
+        }
+        List<Object> versions = new ArrayList<>();
+        versions.add(transaction.getVersion());
+        return versions;
+    }
+
+    private List<Object> getHistoryVersions(String id, MultivaluedMap<String, String> query, User principal) {
+        if (!principal.getUserId().equals(id) && !"me".equals(id)) {
+            return null;
+        }
+        Integer limit;
+        try {
+            limit = query.getFirst("limit") != null ? Integer.valueOf(query.getFirst("limit")) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return historyService.getVersions(principal, query.get("types"), query.get("status"), limit,
+                query.getFirst("cursor"));
+    }
+
+    private static EntityTag toETag(User principal, URI uri, List<Object> versions) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(principal.getId(), StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(uri.getRawPath(), StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(String.valueOf(uri.getRawQuery()), StandardCharsets.UTF_8).putByte((byte) 0);
+        for (Object version : versions) {
+            hasher.putString(String.valueOf(version), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return new EntityTag(hasher.hash().toString().substring(0, 32));
+    }
+
+    @Priority(Priorities.USER)
+    private class ConditionalGetFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+        private final Versioned.Source source;
+
+        private ConditionalGetFilter(Versioned.Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) {
+            if (!(requestContext.getSecurityContext().getUserPrincipal() instanceof User)) {
+                return;
+            }
+            User principal = (User) requestContext.getSecurityContext().getUserPrincipal();
+            List<Object> versions = getVersions(source, requestContext, principal);
+            if (versions == null) {
+                return;
+            }
+            EntityTag etag = toETag(principal, requestContext.getUriInfo().getRequestUri(), versions);
+            requestContext.setProperty(ETAG_PROPERTY, etag);
+            javax.ws.rs.core.Response.ResponseBuilder notModified =
+                    requestContext.getRequest().evaluatePreconditions(etag);
+            if (notModified != null) {
+                requestContext.abortWith(notModified.cacheControl(cacheControl()).build());
+            }
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+            Object etag = requestContext.getProperty(ETAG_PROPERTY);
+            if (etag != null && responseContext.getStatus() == 200) {
+                responseContext.getHeaders().putSingle(HttpHeaders.ETAG, etag);
+                responseContext.getHeaders().putSingle(HttpHeaders.CACHE_CONTROL, cacheControl());
+            }
+        }
+
+        private CacheControl cacheControl() {
+            CacheControl cacheControl = new CacheControl();
+            cacheControl.setPrivate(true);
+            cacheControl.setNoCache(true);
+            return cacheControl;
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package com.iuxta.uxta.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.google.common.eventbus.EventBus;
+import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.dto.RequestDto;
+import com.iuxta.uxta.event.RequestChangedEvent;
 import com.iuxta.uxta.exception.*;
+import com.iuxta.uxta.model.PageCursor;
 import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.SearchParams;
 import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.OpenItemCounter;
 import com.iuxta.uxta.service.RequestService;
 import com.iuxta.uxta.service.ResponseService;
 import com.iuxta.uxta.service.StripeService;
@@ -15,12 +21,15 @@ import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
+import org.bson.types.ObjectId;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import javax.ws.rs.BeanParam;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -30,6 +39,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import java.util.List;
 
@@ -46,15 +56,24 @@ public class RequestsResource {
     private JacksonDBCollection<Response, String> responseCollection;
     private RequestService requestService;
     private ResponseService responseService;
+    private EventBus eventBus;
+    private OpenItemCounter openItemCounter;
+
+    @Context
+    protected HttpServletResponse httpResponse;
 
     public RequestsResource(JacksonDBCollection<Request, String> requestCollection,
                             RequestService requestService,
                             JacksonDBCollection<Response, String> responseCollection,
-                            ResponseService responseService) {
+                            ResponseService responseService,
+                            EventBus eventBus,
+                            OpenItemCounter openItemCounter) {
         this.requestCollection = requestCollection;
         this.requestService = requestService;
         this.responseCollection = responseCollection;
         this.responseService = responseService;
+        this.eventBus = eventBus;
+        this.openItemCounter = openItemCounter;
     }
 
     @GET
@@ -69,11 +88,9 @@ public class RequestsResource {
                     value = "the authentication method, either \"facebook\" (default if empty) or \"google\"",
                     dataType = "string",
                     paramType = "header")})
+    @Deprecated
     public void getRequestNotifications(@Auth @ApiParam(hidden = true) User principal) {
-        if (principal.getNewRequestNotificationsEnabled() == null || !principal.getNewRequestNotificationsEnabled()) {
-            return;
-        }
-        requestService.sendRecentRequestsNotification(principal);
+        // RecentRequestsDigest sends these on a schedule now, kept so clients that still poll it don't get a 404
     }
 
 
@@ -99,14 +116,25 @@ public class RequestsResource {
                                         @QueryParam("sort") String sort,
                                         @QueryParam("offset") Integer offset,
                                         @QueryParam("limit") Integer limit,
-                                        @QueryParam("type") String type) {
+                                        @QueryParam("type") String type,
+                                        @BeanParam
+                                        @ApiParam(value = "with sort=distance, where to measure from and the " +
+                                                "radius in miles (default your home and notification radius)")
+                                        SearchParams near,
+                                        @QueryParam("cursor")
+                                        @ApiParam(value = "the X-Next-Cursor header from the previous page, use " +
+                                                "instead of offset to page without skipping") String cursor) {
         if (principal.getCommunityId() == null || principal.getCommunityId().isEmpty()) {
             String msg = "You must belong to a community to view posts from other users.";
             LOGGER.error("[" + principal.getId() + " - " + principal.getName() + "] " + msg);
             throw new NoCommunityException(msg);
         }
         List<Request> requests = requestService.findRequests(offset, limit, expired, includeMine,
-                searchTerm, sort, principal, type);
+                searchTerm, sort, principal, type, cursor, near);
+        String nextCursor = requestService.getNextCursor(requests, limit, sort, searchTerm);
+        if (nextCursor != null && httpResponse != null) {
+            httpResponse.setHeader(PageCursor.HEADER, nextCursor);
+        }
         return RequestDto.transform(requests);
     }
 
@@ -130,12 +158,19 @@ public class RequestsResource {
             LOGGER.error("[" + principal.getId() + " - " + principal.getName() + "] " + msg);
             throw new NoCommunityException(msg);
         }
-        if (!requestService.canCreateRequest(principal)) {
+        Request request = requestService.transformRequestDto(dto, principal);
+        request.setId(new ObjectId().toString());
+        if (!openItemCounter.reserveRequest(principal, request.getId())) {
             throw new NotAllowedException("You have exceeded the maximum number of open requests.");
         }
-        Request request = requestService.transformRequestDto(dto, principal);
-        WriteResult<Request, String> newRequest = requestCollection.insert(request);
-        request = newRequest.getSavedObject();
+        try {
+            WriteResult<Request, String> newRequest = UxtaUtils.insertVersioned(requestCollection, request);
+            request = newRequest.getSavedObject();
+        } catch (RuntimeException e) {
+            openItemCounter.releaseRequest(principal, request.getId());
+            throw e;
+        }
+        eventBus.post(new RequestChangedEvent(request.getId()));
         requestService.sendAsyncPostNotifications(request);
         return new RequestDto(request);
     }
@@ -144,6 +179,7 @@ public class RequestsResource {
     @Produces(value = MediaType.APPLICATION_JSON)
     @Path("/{requestId}")
     @Timed
+    @Versioned(Versioned.Source.REQUEST)
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
             dataType = "string",
@@ -189,7 +225,11 @@ public class RequestsResource {
             throw new UnauthorizedException(msg);
         }
         requestService.populateRequest(request, dto);
-        requestCollection.save(request);
+        UxtaUtils.saveVersioned(requestCollection, request);
+        if (request.getStatus() != Request.Status.OPEN) {
+            openItemCounter.requestClosed(request);
+        }
+        eventBus.post(new RequestChangedEvent(request.getId()));
         return new RequestDto(request);
     }
 
@@ -219,6 +259,8 @@ public class RequestsResource {
             throw new UnauthorizedException(msg);
         }
         requestCollection.removeById(id);
+        openItemCounter.requestClosed(request);
+        eventBus.post(new RequestChangedEvent(id));
         return javax.ws.rs.core.Response.noContent().build();
 
     }
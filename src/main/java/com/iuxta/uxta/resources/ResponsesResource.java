@@ -13,6 +13,7 @@ import com.iuxta.uxta.model.Response;
 import com.iuxta.uxta.model.ResponseFlag;
 import com.iuxta.uxta.model.User;
 import com.iuxta.uxta.service.ResponseService;
+import com.iuxta.uxta.service.UserCache;
 import com.mongodb.BasicDBObject;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
@@ -40,20 +41,21 @@ public class ResponsesResource {
 
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<Response, String> responseCollection;
-    private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private ResponseService responseService;
 
     public ResponsesResource(JacksonDBCollection<Request, String> requestCollection,
                              JacksonDBCollection<Response, String> responseCollection,
-                             ResponseService responseService, JacksonDBCollection<User, String> userCollection) {
+                             ResponseService responseService, UserCache userCache) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
         this.responseService = responseService;
-        this.userCollection = userCollection;
+        this.userCache = userCache;
     }
 
     @GET
     @Timed
+    @Versioned(Versioned.Source.RESPONSES)
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(value = MediaType.APPLICATION_JSON)
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
@@ -96,7 +98,7 @@ public class ResponsesResource {
         requestResponses.close();
         List<ResponseDto> responsesDto = ResponseDto.transform(responses);
         responsesDto.forEach(r -> {
-            User u = userCollection.findOneById(r.responderId);
+            User u = userCache.findById(r.responderId);
             UserDto userDto = new UserDto();
             userDto.userId = u.getId();
             userDto.lastName = u.getLastName();
@@ -152,9 +154,6 @@ public class ResponsesResource {
             LOGGER.error(msg);
             throw new NotAllowedException(msg);
         }
-        if (!responseService.canCreateResponse(principal)) {
-            throw new NotAllowedException("You have exceeded the maximum number of open/pending offers");
-        }
         Response response = responseService.transformResponseDto(dto, request, principal);
         return new ResponseDto(response);
     }
@@ -195,7 +194,7 @@ public class ResponsesResource {
             }
         }
         ResponseDto responseDto = new ResponseDto(response);
-        User seller = userCollection.findOneById(response.getResponderId());
+        User seller = userCache.findById(response.getResponderId());
         UserDto userDto = new UserDto();
         userDto.userId = seller.getId();
         userDto.lastName = seller.getLastName();
@@ -1,22 +1,27 @@
 package com.iuxta.uxta.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.google.common.eventbus.EventBus;
+import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.dto.TransactionDto;
+import com.iuxta.uxta.event.RequestChangedEvent;
 import com.iuxta.uxta.exception.NotFoundException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.Request;
 import com.iuxta.uxta.model.Response;
 import com.iuxta.uxta.model.Transaction;
 import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.OpenItemCounter;
 import com.iuxta.uxta.service.TransactionService;
+import com.iuxta.uxta.service.UserCache;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
-import org.json.JSONObject;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,27 +48,33 @@ public class TransactionsResource {
 
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<Response, String> responseCollection;
-    private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<Transaction, String> transactionCollection;
     private TransactionService transactionService;
-    private CcsServer ccsServer;
-
+    private NotificationOutbox notificationOutbox;
+    private EventBus eventBus;
+    private OpenItemCounter openItemCounter;
 
     public TransactionsResource(JacksonDBCollection<Request, String> requestCollection,
                                 JacksonDBCollection<Response, String> responseCollection,
-                                JacksonDBCollection<User, String> userCollection,
+                                UserCache userCache,
                                 JacksonDBCollection<Transaction, String> transactionCollection,
-                                CcsServer ccsServer) {
+                                NotificationOutbox notificationOutbox, EventBus eventBus,
+                                OpenItemCounter openItemCounter) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
-        this.userCollection = userCollection;
+        this.userCache = userCache;
         this.transactionCollection = transactionCollection;
-        this.transactionService = new TransactionService(transactionCollection, userCollection, ccsServer, requestCollection);
-        this.ccsServer = ccsServer;
+        this.transactionService = new TransactionService(transactionCollection, userCache, notificationOutbox,
+                requestCollection, eventBus);
+        this.notificationOutbox = notificationOutbox;
+        this.eventBus = eventBus;
+        this.openItemCounter = openItemCounter;
     }
 
     @GET
     @Timed
+    @Versioned(Versioned.Source.TRANSACTION)
     @Produces(value = MediaType.APPLICATION_JSON)
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
@@ -122,22 +133,28 @@ public class TransactionsResource {
             // if the requester cancels the transaction, close the request
             request.setStatus(Request.Status.CLOSED);
         }
-        transactionCollection.save(transaction);
+        UxtaUtils.saveVersioned(transactionCollection, transaction);
         response.setResponseStatus(Response.Status.CLOSED);
         response.setCanceledReason(dto.canceledReason);
-        responseCollection.save(response);
-        requestCollection.save(request);
-        JSONObject notification = new JSONObject();
+        UxtaUtils.saveVersioned(responseCollection, response);
+        UxtaUtils.saveVersioned(requestCollection, request);
+        openItemCounter.transactionClosed(transaction);
+        openItemCounter.offerClosed(response);
+        if (request.getStatus() != Request.Status.OPEN) {
+            openItemCounter.requestClosed(request);
+        }
+        eventBus.post(new RequestChangedEvent(request.getId()));
+        NotificationPayload notification = new NotificationPayload();
         notification.put("title", "Transaction Cancelled");
         notification.put("type", FirebaseUtils.NotificationTypes.cancelled_transaction.name());
         notification.put("reason", transaction.getCanceledReason());
         if (isRequester) {
-            User seller = userCollection.findOneById(response.getResponderId());
+            User seller = userCache.findById(response.getResponderId());
             notification.put("message", seller.getFirstName() + " cancelled your transaction for a " + request.getItemName() + ".");
-            FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+            notificationOutbox.enqueue(seller, notification);
         } else {
             notification.put("message", request.getUser().getFirstName() + " cancelled your transaction for a " + request.getItemName() + ".");
-            FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+            notificationOutbox.enqueue(request.getUser(), notification);
         }
         return new TransactionDto(transaction, isSeller);
     }
@@ -1,21 +1,27 @@
 package com.iuxta.uxta.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.dto.*;
 import com.iuxta.uxta.exception.UnauthorizedException;
+import com.iuxta.uxta.model.PageCursor;
 import com.iuxta.uxta.model.Request;
 import com.iuxta.uxta.model.User;
 import com.iuxta.uxta.model.UserFlag;
-import com.iuxta.uxta.service.ResponseService;
+import com.iuxta.uxta.service.AdminRoster;
+import com.iuxta.uxta.service.HistoryService;
+import com.iuxta.uxta.service.KeywordMatcher;
+import com.iuxta.uxta.service.ProfileFanoutService;
+import com.iuxta.uxta.service.UserCache;
 import com.iuxta.uxta.service.UserService;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
+import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
@@ -23,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -46,22 +53,35 @@ public class UserResource {
     private JacksonDBCollection<User, String> userCollection;
     private JacksonDBCollection<Request, String> requestCollection;
     private UserService userService;
-    private ResponseService responseService;
+    private HistoryService historyService;
+    private AdminRoster adminRoster;
+    private UserCache userCache;
+    private ProfileFanoutService profileFanoutService;
+    private KeywordMatcher keywordMatcher;
     //private StripeService stripeService;
 
 
     public UserResource(JacksonDBCollection<User, String> userCollection,
                         JacksonDBCollection<Request, String> requestCollection, UserService userService,
-                        ResponseService responseService) {
+                        HistoryService historyService, AdminRoster adminRoster,
+                        UserCache userCache, ProfileFanoutService profileFanoutService,
+                        KeywordMatcher keywordMatcher) {
         this.userCollection = userCollection;
         this.requestCollection = requestCollection;
         this.userService = userService;
-        this.responseService = responseService;
+        this.historyService = historyService;
+        this.adminRoster = adminRoster;
+        this.userCache = userCache;
+        this.profileFanoutService = profileFanoutService;
+        this.keywordMatcher = keywordMatcher;
     }
 
     @Context
     protected HttpServletRequest httpRequest;
 
+    @Context
+    protected HttpServletResponse httpResponse;
+
     @GET
     @Produces(value = MediaType.APPLICATION_JSON)
     @Path("/{id}")
@@ -88,7 +108,7 @@ public class UserResource {
             UserDto userDto = UserDto.getMyUserDto(principal);
             return userDto;
         }
-        User user = userCollection.findOneById(id);
+        User user = userCache.findById(id);
         return UserDto.getOtherUserDto(user);
     }
 
@@ -120,8 +140,13 @@ public class UserResource {
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
+        User before = SerializationUtils.clone(principal);
         principal = userService.updateUser(principal, userDto);
         userCollection.save(principal);
+        userCache.invalidate(principal);
+        adminRoster.userChanged(principal);
+        profileFanoutService.userChanged(before, principal);
+        keywordMatcher.userChanged(principal);
         return new UserDto(principal);
     }
 
@@ -153,20 +178,14 @@ public class UserResource {
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
+        User before = SerializationUtils.clone(principal);
         principal = userService.updateUser(principal, userDto);
         userCollection.save(principal);
-
-        // update all of the requests that the user made
-        DBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
-        DBCursor userRequests = requestCollection.find(searchByUser).sort(new BasicDBObject("postDate", -1));
-        List<Request> requests = userRequests.toArray();
-        final User updatedUser = principal;
-        requests.forEach(r -> {
-            r.setUser(updatedUser);
-            requestCollection.save(r);
-        });
-        userRequests.close();
-        UserDto dto =  UserDto.getMyUserDto(updatedUser);
+        userCache.invalidate(principal);
+        adminRoster.userChanged(principal);
+        profileFanoutService.userChanged(before, principal);
+        keywordMatcher.userChanged(principal);
+        UserDto dto =  UserDto.getMyUserDto(principal);
         return dto;
     }
 
@@ -190,17 +209,34 @@ public class UserResource {
     })
     public List<RequestDto> getAllUserRequests(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
     @ApiParam(value = "the id of the user to get requests from, can use \"me\" to get the current user's info")
-    String id) {
+    String id,
+                                               @QueryParam("limit")
+                                               @ApiParam(value = "page size, all requests are returned if neither " +
+                                                       "limit nor cursor is set") Integer limit,
+                                               @QueryParam("cursor")
+                                               @ApiParam(value = "the X-Next-Cursor header from the previous page")
+                                               String cursor) {
         if (!principal.getUserId().equals(id) && !id.equals("me")) {
             String msg = "User [" + principal.getUserId() +
                     "] is not authorized to get requests from user [" + id + "].";
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
-        DBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
-        DBCursor userRequests = requestCollection.find(searchByUser).sort(new BasicDBObject("postDate", -1));
+        BasicDBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
+        boolean paged = limit != null || cursor != null;
+        if (cursor != null) {
+            PageCursor.decode(cursor, true).addToQuery(searchByUser);
+        }
+        DBCursor userRequests = requestCollection.find(searchByUser).sort(PageCursor.newestSort());
+        if (paged) {
+            userRequests.limit(UxtaUtils.getLimit(limit));
+        }
         List<Request> requests = userRequests.toArray();
         userRequests.close();
+        if (paged && requests.size() == UxtaUtils.getLimit(limit) && httpResponse != null) {
+            httpResponse.setHeader(PageCursor.HEADER,
+                    PageCursor.after(requests.get(requests.size() - 1), true).encode());
+        }
         return RequestDto.transform(requests);
     }
 
@@ -208,6 +244,7 @@ public class UserResource {
     @Produces(value = MediaType.APPLICATION_JSON)
     @Path("/{id}/history")
     @Timed
+    @Versioned(Versioned.Source.HISTORY)
     @ApiOperation(
             value = "get a user's requests & responses to requests",
             notes = "this will return the request object along with the responses. If the user made the request, all " +
@@ -225,14 +262,20 @@ public class UserResource {
     })
     public List<HistoryDto> getUserHistory(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
     @ApiParam(value = "the id of the user to get requests from, can use \"me\" to get the current user's info")
-    String id,  @QueryParam("types") List<String> types, @QueryParam("status") List<String> status) {
+    String id,  @QueryParam("types") List<String> types, @QueryParam("status") List<String> status,
+    @QueryParam("limit") @ApiParam(value = "page size, defaults to 20") Integer limit,
+    @QueryParam("cursor") @ApiParam(value = "the X-Next-Cursor header from the previous page") String cursor) {
         if (!principal.getUserId().equals(id) && !id.equals("me")) {
             String msg = "User [" + principal.getUserId() +
                     "] is not authorized to get user [" + id + "]'s history.";
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
-        return responseService.getHistory(principal, types, status);
+        HistoryService.HistoryPage page = historyService.getHistory(principal, types, status, limit, cursor);
+        if (page.getNextCursor() != null && httpResponse != null) {
+            httpResponse.setHeader(PageCursor.HEADER, page.getNextCursor());
+        }
+        return page.getHistory();
     }
 
     @PUT
@@ -269,6 +312,8 @@ public class UserResource {
         }
         principal.setFcmRegistrationId(token);
         userCollection.save(principal);
+        userCache.invalidate(principal);
+        adminRoster.userChanged(principal);
     }
 
     /*@GET
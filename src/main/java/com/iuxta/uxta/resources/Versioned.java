@@ -0,0 +1,28 @@
+package com.iuxta.uxta.resources;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a GET whose result only changes when the version of the documents behind it does, so
+ * {@link ConditionalGetFeature} can send an ETag and answer If-None-Match with a 304 without running the method.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Versioned {
+
+    Source value();
+
+    enum Source {
+        /** a request, {requestId} */
+        REQUEST,
+        /** the responses to a request, {requestId} and the "responder" query param */
+        RESPONSES,
+        /** a transaction, {transactionId} */
+        TRANSACTION,
+        /** a page of the principal's history */
+        HISTORY
+    }
+}
@@ -0,0 +1,86 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBObject;
+import io.dropwizard.util.Duration;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The admin users (and their fcm tokens), kept in memory so every signup, flag, community change and new post doesn't
+ * have to query mongo for them. The list is reloaded after the ttl, or right away when one of the admins' records is
+ * saved through the API; someone being made an admin directly in mongo is picked up once the ttl runs out.
+ */
+public class AdminRoster {
+
+    private static final String KEY = "admins";
+
+    private final JacksonDBCollection<User, String> userCollection;
+
+    private final LoadingCache<String, List<User>> cache;
+
+    private final Timer loads;
+
+    public AdminRoster(JacksonDBCollection<User, String> userCollection, MetricRegistry metrics, Duration ttl) {
+        this.userCollection = userCollection;
+        this.loads = metrics.timer(MetricRegistry.name(AdminRoster.class, "loads"));
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .build(new CacheLoader<String, List<User>>() {
+                    @Override
+                    public List<User> load(String key) {
+                        return loadAdmins();
+                    }
+                });
+    }
+
+    /**
+     * @return the admins, don't modify the list
+     */
+    public List<User> getAdmins() {
+        return cache.getUnchecked(KEY);
+    }
+
+    public boolean isAdmin(String userId) {
+        for (User admin : getAdmins()) {
+            if (admin.getId().equals(userId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Call after saving a user, reloads the roster if they are (or were) an admin.
+     *
+     * @param user the user as saved
+     */
+    public void userChanged(User user) {
+        if (Boolean.TRUE.equals(user.getAdmin())) {
+            cache.invalidateAll();
+            return;
+        }
+        List<User> admins = cache.getIfPresent(KEY);
+        if (admins != null && admins.stream().anyMatch(a -> a.getId().equals(user.getId()))) {
+            cache.invalidateAll();
+        }
+    }
+
+    private List<User> loadAdmins() {
+        try (Timer.Context ignored = loads.time()) {
+            DBCursor<User> cursor = userCollection.find(new BasicDBObject("admin", true));
+            List<User> admins = cursor.toArray();
+            cursor.close();
+            return Collections.unmodifiableList(admins);
+        }
+    }
+}
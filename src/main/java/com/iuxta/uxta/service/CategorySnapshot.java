@@ -0,0 +1,93 @@
+package com.iuxta.uxta.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.iuxta.uxta.dto.CategoryDto;
+import com.iuxta.uxta.model.Category;
+import org.apache.commons.lang3.SerializationUtils;
+import org.mongojack.DBCursor;
+import org.mongojack.DBSort;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.EntityTag;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * All of the categories, loaded once and kept in memory since they hardly ever change. The list, the lookup by id and
+ * the ETag are swapped out together on {@link #reload()}, which has to be called after a category is added; categories
+ * changed directly in mongo show up after the next reload or restart.
+ */
+public class CategorySnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CategorySnapshot.class);
+
+    private final JacksonDBCollection<Category, String> categoriesCollection;
+
+    private volatile Snapshot snapshot;
+
+    public CategorySnapshot(JacksonDBCollection<Category, String> categoriesCollection) {
+        this.categoriesCollection = categoriesCollection;
+        reload();
+    }
+
+    public void reload() {
+        DBCursor<Category> cursor = categoriesCollection.find().sort(DBSort.asc("_id"));
+        List<Category> categories = cursor.toArray();
+        cursor.close();
+        snapshot = new Snapshot(categories);
+        LOGGER.info("Loaded [" + categories.size() + "] categories, version [" + snapshot.etag.getValue() + "]");
+    }
+
+    /**
+     * @return every category, don't modify the list or its entries
+     */
+    public List<CategoryDto> getCategories() {
+        return snapshot.dtos;
+    }
+
+    /**
+     * @param id
+     * @return a copy of the category, or null if there is no such category
+     */
+    public Category get(String id) {
+        Category category = id != null ? snapshot.byId.get(id) : null;
+        return category != null ? SerializationUtils.clone(category) : null;
+    }
+
+    /**
+     * @return a strong ETag that changes whenever the contents of {@link #getCategories()} do
+     */
+    public EntityTag getETag() {
+        return snapshot.etag;
+    }
+
+    private static class Snapshot {
+        private final List<CategoryDto> dtos;
+        private final ImmutableMap<String, Category> byId;
+        private final EntityTag etag;
+
+        private Snapshot(List<Category> categories) {
+            ImmutableMap.Builder<String, Category> byId = ImmutableMap.builder();
+            Hasher hasher = Hashing.sha256().newHasher();
+            for (Category category : categories) {
+                byId.put(category.getId(), category);
+                hasher.putString(category.getId(), StandardCharsets.UTF_8).putByte((byte) 0);
+                hasher.putString(String.valueOf(category.getName()), StandardCharsets.UTF_8).putByte((byte) 0);
+                if (category.getExamples() != null) {
+                    for (String example : category.getExamples()) {
+                        hasher.putString(String.valueOf(example), StandardCharsets.UTF_8).putByte((byte) 0);
+                    }
+                }
+                hasher.putByte((byte) 1);
+            }
+            this.dtos = ImmutableList.copyOf(CategoryDto.transform(categories));
+            this.byId = byId.build();
+            this.etag = new EntityTag(hasher.hash().toString().substring(0, 32));
+        }
+    }
+}
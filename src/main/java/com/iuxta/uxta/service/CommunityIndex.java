@@ -0,0 +1,255 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.model.Community;
+import io.dropwizard.util.Duration;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typeahead search over the communities' names, addresses and descriptions, served from memory so the search box
+ * doesn't query mongo on every keystroke. Communities are only added or edited directly in mongo, so the index is
+ * rebuilt after the ttl (the search that notices starts a rebuild in the background and keeps using the old index
+ * until the new one is built) or right away with the reindex-communities admin task.
+ */
+public class CommunityIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommunityIndex.class);
+
+    private static final String KEY = "communities";
+
+    private final JacksonDBCollection<Community, String> communitiesCollection;
+
+    private final LoadingCache<String, Index> cache;
+
+    private final Timer loads;
+
+    public CommunityIndex(JacksonDBCollection<Community, String> communitiesCollection, MetricRegistry metrics,
+                          Executor reloads, Duration ttl) {
+        this.communitiesCollection = communitiesCollection;
+        this.loads = metrics.timer(MetricRegistry.name(CommunityIndex.class, "loads"));
+        this.cache = CacheBuilder.newBuilder()
+                .refreshAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .build(CacheLoader.asyncReloading(new CacheLoader<String, Index>() {
+                    @Override
+                    public Index load(String key) {
+                        return loadIndex();
+                    }
+                }, reloads));
+    }
+
+    /**
+     * @param term  what the user has typed so far, null or empty for the first communities by name
+     * @param limit
+     * @return the best matches first, don't modify them
+     */
+    public List<Community> search(String term, int limit) {
+        return cache.getUnchecked(KEY).search(term, limit);
+    }
+
+    /**
+     * Rebuilds the index from mongo now.
+     *
+     * @return how many communities were indexed
+     */
+    public int reload() {
+        Index index = loadIndex();
+        cache.put(KEY, index);
+        return index.size();
+    }
+
+    private Index loadIndex() {
+        try (Timer.Context ignored = loads.time()) {
+            DBCursor<Community> cursor = communitiesCollection.find();
+            List<Community> communities = cursor.toArray();
+            cursor.close();
+            LOGGER.info("Indexed [" + communities.size() + "] communities");
+            return new Index(communities);
+        }
+    }
+
+    /**
+     * Immutable index over a list of communities. Every word in a field is indexed by its prefixes (for typeahead) and
+     * by its trigrams (so a word matches from the middle, or with a typo). Each word of the search term has to match
+     * every result, and results are ranked by how well: whole word over prefix over trigrams, and name over address
+     * over description.
+     */
+    public static class Index {
+
+        // name, address, description
+        private static final double[] FIELD_WEIGHTS = {3, 2, 1};
+
+        // longer search words are looked up by their first MAX_PREFIX characters, then checked against the words
+        private static final int MAX_PREFIX = 10;
+
+        private static final double EXACT = 1.0;
+        private static final double PREFIX = 0.8;
+        private static final double TRIGRAMS = 0.5;
+        private static final double MIN_TRIGRAM_SIMILARITY = 0.5;
+
+        private final List<Community> communities;
+
+        // words of each field of each community: words[community][field]
+        private final String[][][] words;
+
+        // prefix or trigram -> postings, where a posting is community * 3 + field
+        private final Map<String, int[]> prefixes;
+        private final Map<String, int[]> trigrams;
+
+        private final List<Community> byName;
+
+        public Index(List<Community> communities) {
+            this.communities = new ArrayList<>(communities);
+            this.words = new String[communities.size()][][];
+            Map<String, Set<Integer>> prefixPostings = new HashMap<>();
+            Map<String, Set<Integer>> trigramPostings = new HashMap<>();
+            for (int c = 0; c < communities.size(); c++) {
+                Community community = communities.get(c);
+                String[] fields = {community.getName(), community.getAddress(), community.getDescription()};
+                words[c] = new String[fields.length][];
+                for (int f = 0; f < fields.length; f++) {
+                    words[c][f] = UxtaUtils.words(fields[f]);
+                    int posting = c * 3 + f;
+                    for (String word : words[c][f]) {
+                        for (int i = 1; i <= Math.min(word.length(), MAX_PREFIX); i++) {
+                            prefixPostings.computeIfAbsent(word.substring(0, i), k -> new LinkedHashSet<>()).add(posting);
+                        }
+                        for (String trigram : trigrams(word)) {
+                            trigramPostings.computeIfAbsent(trigram, k -> new LinkedHashSet<>()).add(posting);
+                        }
+                    }
+                }
+            }
+            this.prefixes = toArrays(prefixPostings);
+            this.trigrams = toArrays(trigramPostings);
+            List<Community> sorted = new ArrayList<>(communities);
+            sorted.sort(Comparator.comparing(Index::sortName));
+            this.byName = Collections.unmodifiableList(sorted);
+        }
+
+        public int size() {
+            return communities.size();
+        }
+
+        public List<Community> search(String term, int limit) {
+            String[] terms = UxtaUtils.words(term);
+            if (terms.length == 0) {
+                return byName.subList(0, Math.min(limit, byName.size()));
+            }
+            Map<Integer, Double> scores = null;
+            for (String t : terms) {
+                Map<Integer, Double> termScores = score(t);
+                if (scores == null) {
+                    scores = termScores;
+                } else {
+                    Map<Integer, Double> both = new HashMap<>();
+                    for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+                        Double s = termScores.get(e.getKey());
+                        if (s != null) {
+                            both.put(e.getKey(), e.getValue() + s);
+                        }
+                    }
+                    scores = both;
+                }
+                if (scores.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+            final Map<Integer, Double> finalScores = scores;
+            List<Integer> matches = new ArrayList<>(finalScores.keySet());
+            matches.sort(Comparator.<Integer, Double>comparing(finalScores::get).reversed()
+                    .thenComparing(c -> sortName(communities.get(c))));
+            List<Community> results = new ArrayList<>();
+            for (int i = 0; i < Math.min(limit, matches.size()); i++) {
+                results.add(communities.get(matches.get(i)));
+            }
+            return results;
+        }
+
+        /**
+         * @return the best score for one search word in each community it matches
+         */
+        private Map<Integer, Double> score(String term) {
+            Map<Integer, Double> scores = new HashMap<>();
+            int[] postings = prefixes.get(term.length() > MAX_PREFIX ? term.substring(0, MAX_PREFIX) : term);
+            if (postings != null) {
+                for (int posting : postings) {
+                    double best = 0;
+                    for (String word : words[posting / 3][posting % 3]) {
+                        if (word.equals(term)) {
+                            best = EXACT;
+                            break;
+                        } else if (word.startsWith(term)) {
+                            best = PREFIX;
+                        }
+                    }
+                    addScore(scores, posting, best);
+                }
+            }
+            Set<String> termTrigrams = trigrams(term);
+            if (!termTrigrams.isEmpty()) {
+                Map<Integer, Integer> hits = new HashMap<>();
+                for (String trigram : termTrigrams) {
+                    int[] trigramPostings = trigrams.get(trigram);
+                    if (trigramPostings != null) {
+                        for (int posting : trigramPostings) {
+                            hits.merge(posting, 1, Integer::sum);
+                        }
+                    }
+                }
+                for (Map.Entry<Integer, Integer> hit : hits.entrySet()) {
+                    double similarity = (double) hit.getValue() / termTrigrams.size();
+                    if (similarity >= MIN_TRIGRAM_SIMILARITY) {
+                        addScore(scores, hit.getKey(), TRIGRAMS * similarity);
+                    }
+                }
+            }
+            return scores;
+        }
+
+        private static void addScore(Map<Integer, Double> scores, int posting, double score) {
+            if (score > 0) {
+                scores.merge(posting / 3, score * FIELD_WEIGHTS[posting % 3], Math::max);
+            }
+        }
+
+        private static String sortName(Community community) {
+            return community.getName() != null ? community.getName().toLowerCase() : "";
+        }
+
+        private static Set<String> trigrams(String word) {
+            Set<String> trigrams = new HashSet<>();
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                trigrams.add(word.substring(i, i + 3));
+            }
+            return trigrams;
+        }
+
+        private static Map<String, int[]> toArrays(Map<String, Set<Integer>> postings) {
+            Map<String, int[]> arrays = new HashMap<>(postings.size());
+            for (Map.Entry<String, Set<Integer>> e : postings.entrySet()) {
+                arrays.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+            return arrays;
+        }
+    }
+}
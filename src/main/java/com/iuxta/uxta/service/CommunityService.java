@@ -1,15 +1,13 @@
 package com.iuxta.uxta.service;
 
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.Community;
 import com.iuxta.uxta.model.Request;
 import com.iuxta.uxta.model.User;
 import com.iuxta.uxta.resources.CommunitiesResource;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import org.json.JSONObject;
-import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,33 +23,27 @@ public class CommunityService {
 
     private JacksonDBCollection<Community, String> communitiesCollection;
     private JacksonDBCollection<User, String> userCollection;
-    private CcsServer ccsServer;
-
+    private NotificationOutbox notificationOutbox;
+    private AdminRoster adminRoster;
+    private UserCache userCache;
+    private CommunityIndex communityIndex;
+    private KeywordMatcher keywordMatcher;
 
     public CommunityService(JacksonDBCollection<Community, String> communitiesCollection,
-                            JacksonDBCollection<User, String> userCollection, CcsServer ccsServer) {
+                            JacksonDBCollection<User, String> userCollection, NotificationOutbox notificationOutbox,
+                            AdminRoster adminRoster, UserCache userCache, CommunityIndex communityIndex,
+                            KeywordMatcher keywordMatcher) {
         this.communitiesCollection = communitiesCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
+        this.adminRoster = adminRoster;
+        this.userCache = userCache;
+        this.communityIndex = communityIndex;
+        this.keywordMatcher = keywordMatcher;
     }
 
     public List<Community> getCommunities(String term) {
-        if (term == null || term.isEmpty()) {
-            DBCursor communitiesCursor = communitiesCollection.find().limit(20);
-            List<Community> communities = communitiesCursor.toArray();
-            communitiesCursor.close();
-            return communities;
-        } else {
-            BasicDBObject query = new BasicDBObject();
-            BasicDBObject searchQuery = new BasicDBObject();
-            searchQuery.append("$search", term);
-            query.put("$text", searchQuery);
-            DBCursor communitiesCursor = communitiesCollection.find().limit(20);
-            List<Community> communities = communitiesCursor.toArray();
-            communitiesCursor.close();
-            return communities;
-        }
-
+        return communityIndex.search(term, UxtaUtils.DEFAULT_LIMIT);
     }
 
     public Community getCommunityById(String id) {
@@ -73,6 +65,8 @@ public class CommunityService {
         }
         user.setCommunityId(communityId);
         userCollection.save(user);
+        userCache.invalidate(user);
+        keywordMatcher.userChanged(user);
         sendAdminsCommunityRequestNotification(user, community);
         return user;
     }
@@ -88,23 +82,23 @@ public class CommunityService {
             user.setCommunityId(null);
         }
         userCollection.save(user);
+        userCache.invalidate(user);
+        keywordMatcher.userChanged(user);
         sendAdminsCommunityRemoveNotification(user, community);
         return user;
     }
 
     public void sendAdminsCommunityRequestNotification(User user, Community community) {
         try {
-            DBObject findAdmins = new BasicDBObject("admin", true);
-            DBCursor cursor = userCollection.find(findAdmins);
-            List<User> admins = cursor.toArray();
+            List<User> admins = adminRoster.getAdmins();
             if (admins != null && admins.size() > 0) {
-                JSONObject notification = new JSONObject();
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", "Request to join community!");
                 String body = "User [" + user.getName() + "] joined community [" + community.getId() + " -  " + community.getName() + "]!";
                 notification.put("message", body);
                 notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
                 for (User admin:admins) {
-                    FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                    notificationOutbox.enqueue(admin, notification);
                 }        }
         } catch (Exception e) {
             //do nothing
@@ -114,17 +108,15 @@ public class CommunityService {
 
     public void sendAdminsCommunityRemoveNotification(User user, Community community) {
         try {
-            DBObject findAdmins = new BasicDBObject("admin", true);
-            DBCursor cursor = userCollection.find(findAdmins);
-            List<User> admins = cursor.toArray();
+            List<User> admins = adminRoster.getAdmins();
             if (admins != null && admins.size() > 0) {
-                JSONObject notification = new JSONObject();
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", "Request to LEAVE community!");
                 String body = "User [" + user.getName() + "] left community [" + community.getId() + " -  " + community.getName() + "]!";
                 notification.put("message", body);
                 notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
                 for (User admin:admins) {
-                    FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                    notificationOutbox.enqueue(admin, notification);
                 }        }
         } catch (Exception e) {
             //do nothing
@@ -0,0 +1,224 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.eventbus.EventBus;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.dto.RequestDto;
+import com.iuxta.uxta.dto.ResponseDto;
+import com.iuxta.uxta.event.RequestChangedEvent;
+import com.iuxta.uxta.firebase.FirebaseUtils;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.Response;
+import com.iuxta.uxta.model.Transaction;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBObject;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Closes requests once their expireDate passes, along with their pending offers, and clears exchange and return codes
+ * once they expire. Runs every interval, so an open request is never more than one interval past its expireDate and
+ * the feed can go by status alone.
+ *
+ * Each sweep closes the expired requests with one multi-document update that stamps them with the sweep's id, so
+ * with more than one server every request is closed (and its responders told) by exactly one of them. The same update
+ * sets expiredDate, which stays so the expired feed can tell them from requests closed for other reasons.
+ */
+public class ExpirySweeper implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String SWEEP_FIELD = "expiredBySweep";
+
+    // requests that expired before this long ago (e.g. from before the sweeper) are closed without telling anyone
+    private static final long NOTIFY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final JacksonDBCollection<Request, String> requestCollection;
+    private final JacksonDBCollection<Response, String> responseCollection;
+    private final JacksonDBCollection<Transaction, String> transactionCollection;
+    private final UserCache userCache;
+    private final NotificationOutbox notificationOutbox;
+    private final EventBus eventBus;
+    private final long intervalMillis;
+    private final Timer sweeps;
+    private final Meter closedRequests;
+    private final Meter closedResponses;
+    private final Meter clearedCodes;
+    private final ScheduledExecutorService scheduler;
+
+    public ExpirySweeper(JacksonDBCollection<Request, String> requestCollection,
+                         JacksonDBCollection<Response, String> responseCollection,
+                         JacksonDBCollection<Transaction, String> transactionCollection,
+                         UserCache userCache, NotificationOutbox notificationOutbox, EventBus eventBus,
+                         MetricRegistry metrics, ScheduledExecutorService scheduler, Duration interval) {
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.transactionCollection = transactionCollection;
+        this.userCache = userCache;
+        this.notificationOutbox = notificationOutbox;
+        this.eventBus = eventBus;
+        this.scheduler = scheduler;
+        this.intervalMillis = interval.toMilliseconds();
+        this.sweeps = metrics.timer(MetricRegistry.name(ExpirySweeper.class, "sweeps"));
+        this.closedRequests = metrics.meter(MetricRegistry.name(ExpirySweeper.class, "closed-requests"));
+        this.closedResponses = metrics.meter(MetricRegistry.name(ExpirySweeper.class, "closed-responses"));
+        this.clearedCodes = metrics.meter(MetricRegistry.name(ExpirySweeper.class, "cleared-codes"));
+    }
+
+    @Override
+    public void start() throws Exception {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (Exception e) {
+                LOGGER.error("Could not sweep expired requests and codes", e);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        // the scheduler is managed, it's shut down along with the app
+    }
+
+    public void sweep() {
+        try (Timer.Context ignored = sweeps.time()) {
+            Date now = new Date();
+            int requests;
+            do {
+                requests = closeExpiredRequests(now);
+            } while (requests == BATCH_SIZE);
+            clearExpiredCodes(now);
+        }
+    }
+
+    /**
+     * Closes a batch of expired requests and their pending offers.
+     *
+     * @return how many requests were found, BATCH_SIZE if there may be more
+     */
+    private int closeExpiredRequests(Date now) {
+        BasicDBObject expired = new BasicDBObject("status", Request.Status.OPEN.name())
+                .append("expireDate", new BasicDBObject("$lte", now));
+        DBCursor<Request> expiredCursor = requestCollection.find(expired, DBProjection.include("_id"))
+                .limit(BATCH_SIZE);
+        List<ObjectId> ids = expiredCursor.toArray().stream().map(r -> new ObjectId(r.getId()))
+                .collect(Collectors.toList());
+        expiredCursor.close();
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        String sweepId = new ObjectId().toString();
+        expired.append("_id", new BasicDBObject("$in", ids));
+        requestCollection.updateMulti(expired, new BasicDBObject("$set",
+                new BasicDBObject("status", Request.Status.CLOSED.name()).append("expiredDate", now)
+                        .append(SWEEP_FIELD, sweepId))
+                .append("$max", new BasicDBObject("version", UxtaUtils.nextVersion(null))));
+        BasicDBObject closedBySweep = new BasicDBObject("_id", new BasicDBObject("$in", ids))
+                .append(SWEEP_FIELD, sweepId);
+        DBCursor<Request> closedCursor = requestCollection.find(closedBySweep);
+        Map<String, Request> closed = closedCursor.toArray().stream()
+                .collect(Collectors.toMap(Request::getId, Function.identity()));
+        closedCursor.close();
+        requestCollection.updateMulti(closedBySweep, new BasicDBObject("$unset", new BasicDBObject(SWEEP_FIELD, "")));
+        closedRequests.mark(closed.size());
+
+        if (!closed.isEmpty()) {
+            closePendingResponses(closed, now);
+            closed.keySet().forEach(id -> eventBus.post(new RequestChangedEvent(id)));
+            LOGGER.info("Closed [" + closed.size() + "] expired requests");
+        }
+        return ids.size();
+    }
+
+    /**
+     * Closes the pending offers on requests that were just closed and tells their responders. The requests are
+     * already closed, so nobody can accept or change these offers in the meantime.
+     */
+    private void closePendingResponses(Map<String, Request> requests, Date now) {
+        BasicDBObject pending = new BasicDBObject("requestId", new BasicDBObject("$in", requests.keySet()))
+                .append("responseStatus", Response.Status.PENDING.name());
+        DBCursor<Response> cursor = responseCollection.find(pending);
+        List<Response> responses = cursor.toArray();
+        cursor.close();
+        if (responses.isEmpty()) {
+            return;
+        }
+        responseCollection.updateMulti(pending, new BasicDBObject("$set",
+                new BasicDBObject("responseStatus", Response.Status.CLOSED.name())
+                        .append("buyerStatus", Response.BuyerStatus.CLOSED.name()))
+                .append("$max", new BasicDBObject("version", UxtaUtils.nextVersion(null))));
+        closedResponses.mark(responses.size());
+
+        Date notifyAfter = new Date(now.getTime() - NOTIFY_MILLIS);
+        List<NotificationOutbox.Addressed> notifications = new ArrayList<>();
+        for (Response response : responses) {
+            Request request = requests.get(response.getRequestId());
+            if (request.getExpireDate().before(notifyAfter)) {
+                continue;
+            }
+            User recipient = userCache.findById(response.getResponderId());
+            if (recipient == null) {
+                continue;
+            }
+            response.setResponseStatus(Response.Status.CLOSED);
+            response.setBuyerStatus(Response.BuyerStatus.CLOSED);
+            NotificationPayload notification = new NotificationPayload();
+            notification.put("title", "Offer Closed");
+            notification.put("message", "Your offer to " + request.getUser().getFirstName() + " for a " +
+                    request.getItemName() + " has been closed because the request expired");
+            notification.put("type", FirebaseUtils.NotificationTypes.offer_closed.name());
+            try {
+                notification.putResponse(new ResponseDto(response));
+                notification.putRequest(new RequestDto(request));
+            } catch (JsonProcessingException e) {
+                LOGGER.error("Could not convert object to json string, got error: " + e.getMessage());
+                continue;
+            }
+            notifications.add(new NotificationOutbox.Addressed(recipient.getId(), notification));
+        }
+        notificationOutbox.enqueueAll(notifications);
+    }
+
+    /**
+     * Clears exchange and return codes once they expire so they can't be used, along with their expiry dates so the
+     * index only holds live codes.
+     */
+    private void clearExpiredCodes(Date now) {
+        int cleared = 0;
+        for (String code : new String[]{"exchangeCode", "returnCode"}) {
+            BasicDBObject query = new BasicDBObject(code + "ExpireDate", new BasicDBObject("$lte", now));
+            BasicDBObject update = new BasicDBObject("$set", new BasicDBObject(code, null)
+                    .append(code + "ExpireDate", null))
+                    .append("$max", new BasicDBObject("version", UxtaUtils.nextVersion(null)));
+            cleared += transactionCollection.updateMulti(query, update).getN();
+        }
+        clearedCodes.mark(cleared);
+        if (cleared > 0) {
+            LOGGER.info("Cleared [" + cleared + "] expired exchange and return codes");
+        }
+    }
+}
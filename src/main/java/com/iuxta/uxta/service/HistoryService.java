@@ -0,0 +1,430 @@
+package com.iuxta.uxta.service;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.dto.HistoryDto;
+import com.iuxta.uxta.dto.RequestDto;
+import com.iuxta.uxta.dto.ResponseDto;
+import com.iuxta.uxta.dto.TransactionDto;
+import com.iuxta.uxta.dto.UserDto;
+import com.iuxta.uxta.event.RequestChangedEvent;
+import com.iuxta.uxta.event.ResponseCreatedEvent;
+import com.iuxta.uxta.model.*;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps each user's history in the userTimeline collection: one {@link TimelineEntry} per request they posted and
+ * per offer they made, holding the dto the history screen shows along with its precomputed sort rank. Entries for a
+ * request are rebuilt whenever a {@link RequestChangedEvent} or {@link ResponseCreatedEvent} comes through for it, so
+ * reading a page of history is a single indexed query.
+ *
+ * History is ordered open transactions first, then open requests/offers, then everything else, newest first.
+ */
+public class HistoryService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryService.class);
+
+    private static final String REQUESTS = "requests";
+
+    private static final String OFFERS = "offers";
+
+    private static final String TRANSACTIONS = "transactions";
+
+    private static final String OPEN = "open";
+
+    private static final String CLOSED = "closed";
+
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private JacksonDBCollection<User, String> userCollection;
+    private JacksonDBCollection<Transaction, String> transactionCollection;
+    private JacksonDBCollection<TimelineEntry, String> timelineCollection;
+
+    public HistoryService(JacksonDBCollection<Request, String> requestCollection,
+                          JacksonDBCollection<Response, String> responseCollection,
+                          JacksonDBCollection<User, String> userCollection,
+                          JacksonDBCollection<Transaction, String> transactionCollection,
+                          JacksonDBCollection<TimelineEntry, String> timelineCollection,
+                          EventBus eventBus) {
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.userCollection = userCollection;
+        this.transactionCollection = transactionCollection;
+        this.timelineCollection = timelineCollection;
+        eventBus.register(this);
+    }
+
+    /**
+     * @param user   the user whose history to get
+     * @param types  any of "requests", "offers", "transactions", all of them if empty
+     * @param status any of "open", "closed", both if empty
+     * @param limit  page size
+     * @param cursor from the previous page's {@link PageCursor#HEADER} header, null for the first page
+     * @return one page of history
+     */
+    public HistoryPage getHistory(User user, List<String> types, List<String> status, Integer limit, String cursor) {
+        BasicDBObject query = getQuery(user, types, status, cursor);
+        if (query == null) {
+            return new HistoryPage(new ArrayList<>(), null);
+        }
+        Set<String> blocked = user.getBlockedUsers() != null ? new HashSet<>(user.getBlockedUsers()) :
+                Collections.emptySet();
+        int pageSize = UxtaUtils.getLimit(limit);
+        DBCursor<TimelineEntry> timeline = timelineCollection.find(query).sort(HistoryCursor.sort()).limit(pageSize);
+        List<TimelineEntry> entries = timeline.toArray();
+        timeline.close();
+        List<HistoryDto> history = new ArrayList<>();
+        for (TimelineEntry entry : entries) {
+            HistoryDto dto = entry.getHistory();
+            if (entry.getResponseId() == null && !blocked.isEmpty()) {
+                dto.responses = dto.responses.stream().filter(r -> !blocked.contains(r.responderId))
+                        .collect(Collectors.toList());
+            }
+            history.add(dto);
+        }
+        String nextCursor = entries.size() == pageSize ?
+                HistoryCursor.after(entries.get(entries.size() - 1)).encode() : null;
+        return new HistoryPage(history, nextCursor);
+    }
+
+    /**
+     * The ids and versions of the entries {@link #getHistory} would return, read from the timeline without the
+     * entries themselves, along with the blocked users since those are filtered out of the responses.
+     *
+     * @return the values to build the page's ETag from
+     */
+    public List<Object> getVersions(User user, List<String> types, List<String> status, Integer limit, String cursor) {
+        List<Object> versions = new ArrayList<>();
+        if (user.getBlockedUsers() != null) {
+            versions.addAll(user.getBlockedUsers());
+        }
+        BasicDBObject query = getQuery(user, types, status, cursor);
+        if (query == null) {
+            return versions;
+        }
+        DBCursor<TimelineEntry> timeline = timelineCollection.find(query, DBProjection.include("_id", "version"))
+                .sort(HistoryCursor.sort()).limit(UxtaUtils.getLimit(limit));
+        timeline.forEach(e -> {
+            versions.add(e.getId());
+            versions.add(e.getVersion());
+        });
+        timeline.close();
+        return versions;
+    }
+
+    /**
+     * @return the timeline query for a page of history, null if the filters can't match anything
+     */
+    private BasicDBObject getQuery(User user, List<String> types, List<String> status, String cursor) {
+        Set<String> getTypes = new HashSet<>();
+        if (types == null || types.size() == 0) {
+            getTypes.addAll(Arrays.asList(REQUESTS, OFFERS, TRANSACTIONS));
+        } else {
+            for (String type:types) {
+                if (type.toLowerCase().equals(REQUESTS) || type.toLowerCase().equals(OFFERS) ||
+                        type.toLowerCase().equals(TRANSACTIONS)) {
+                    getTypes.add(type.toLowerCase());
+                }
+            }
+        }
+        boolean getOpen = false;
+        boolean getClosed = false;
+        if (status == null || status.size() == 0) {
+            getOpen = true;
+            getClosed = true;
+        } else {
+            for (String s:status) {
+                if (s.toLowerCase().equals(OPEN)) {
+                    getOpen = true;
+                } else if (s.toLowerCase().equals(CLOSED)) {
+                    getClosed = true;
+                }
+            }
+        }
+        if (getTypes.isEmpty() || (!getOpen && !getClosed)) {
+            return null;
+        }
+        BasicDBObject query = new BasicDBObject("userId", user.getId());
+        query.put("type", new BasicDBObject("$in", getTypes));
+        if (getOpen != getClosed) {
+            query.put("statuses", getOpen ? OPEN : CLOSED);
+        }
+        Set<String> blocked = user.getBlockedUsers() != null ? new HashSet<>(user.getBlockedUsers()) :
+                Collections.emptySet();
+        if (!blocked.isEmpty()) {
+            //don't show offers on requests from users they have blocked
+            query.put("otherUserId", new BasicDBObject("$nin", blocked));
+        }
+        if (cursor != null) {
+            HistoryCursor.decode(cursor).addToQuery(query);
+        }
+        return query;
+    }
+
+    @Subscribe
+    public void onRequestChanged(RequestChangedEvent event) {
+        refresh(event.getRequestId());
+    }
+
+    @Subscribe
+    public void onResponseCreated(ResponseCreatedEvent event) {
+        refresh(event.getResponse().getRequestId());
+    }
+
+    /**
+     * Rebuilds the timeline entries for a request: the requester's, and one for each user who made an offer on it.
+     * Entries that no longer apply (e.g. the request was deleted) are removed.
+     *
+     * @param requestId
+     */
+    public void refresh(String requestId) {
+        Map<String, String> existing = new HashMap<>();
+        DBCursor<TimelineEntry> current = timelineCollection.find(new BasicDBObject("requestId", requestId),
+                DBProjection.include("_id", "userId", "responseId"));
+        for (TimelineEntry e : current) {
+            if (existing.putIfAbsent(entryKey(e.getUserId(), e.getResponseId()), e.getId()) != null) {
+                // a duplicate from before entries were upserted, the unique index can't be built until it's gone
+                timelineCollection.removeById(e.getId());
+            }
+        }
+        current.close();
+
+        List<TimelineEntry> entries = new ArrayList<>();
+        Request request = requestCollection.findOneById(requestId);
+        if (request != null) {
+            DBCursor<Response> responseCursor = responseCollection.find(new BasicDBObject("requestId", requestId))
+                    .sort(new BasicDBObject("responseTime", -1));
+            List<Response> responses = responseCursor.toArray();
+            responseCursor.close();
+            DBCursor<Transaction> transactionCursor = transactionCollection.find(
+                    new BasicDBObject("requestId", requestId));
+            List<Transaction> transactions = transactionCursor.toArray();
+            transactionCursor.close();
+
+            TimelineEntry requesterEntry = getRequesterEntry(request, responses, transactions);
+            if (requesterEntry != null) {
+                entries.add(requesterEntry);
+            }
+            for (Response response : responses) {
+                TimelineEntry responderEntry = getResponderEntry(request, response, transactions);
+                if (responderEntry != null) {
+                    entries.add(responderEntry);
+                }
+            }
+        }
+        for (TimelineEntry entry : entries) {
+            existing.remove(entryKey(entry.getUserId(), entry.getResponseId()));
+            UxtaUtils.bumpVersion(entry);
+            upsert(entry);
+        }
+        for (String staleId : existing.values()) {
+            timelineCollection.removeById(staleId);
+        }
+    }
+
+    /**
+     * Replaces the entry for (requestId, userId, responseId), or inserts it. The rebuild task and the domain event
+     * thread can refresh the same request at once, the unique index on those keys keeps it to one entry each.
+     */
+    private void upsert(TimelineEntry entry) {
+        BasicDBObject key = new BasicDBObject("requestId", entry.getRequestId())
+                .append("userId", entry.getUserId())
+                .append("responseId", entry.getResponseId());
+        DBObject document = timelineCollection.convertToDbObject(entry);
+        document.removeField("_id");
+        try {
+            timelineCollection.update(key, document, true, false);
+        } catch (DuplicateKeyException e) {
+            // both upserts tried to insert, the other one won so this one is now an update
+            timelineCollection.update(key, document, true, false);
+        }
+    }
+
+    /**
+     * Rebuilds every user's timeline from the requests, offers and transactions in mongo, for backfilling the
+     * collection or repairing it.
+     *
+     * @return how many requests were processed
+     */
+    public int rebuild() {
+        int count = 0;
+        DBCursor<Request> requests = requestCollection.find(new BasicDBObject(), DBProjection.include("_id"));
+        while (requests.hasNext()) {
+            refresh(requests.next().getId());
+            count++;
+            if (count % 1000 == 0) {
+                LOGGER.info("Rebuilt timeline entries for [" + count + "] requests");
+            }
+        }
+        requests.close();
+        return count;
+    }
+
+    /**
+     * The request as its poster sees it, with the offers on it and its transaction if there is one.
+     */
+    private TimelineEntry getRequesterEntry(Request request, List<Response> responses, List<Transaction> transactions) {
+        if (request.getUser() == null || request.getType() == null) {
+            return null;
+        }
+        Transaction transaction = transactions.stream().filter(t -> !t.getCanceled()).findFirst().orElse(null);
+        TimelineEntry entry = new TimelineEntry();
+        entry.setUserId(request.getUser().getId());
+        entry.setRequestId(request.getId());
+        if (request.getType().equals(Request.Type.buying) || request.getType().equals(Request.Type.renting)) {
+            // buying/renting requests are "requests" whether or not there is a transaction
+            entry.setType(REQUESTS);
+        } else {
+            entry.setType(transaction != null ? TRANSACTIONS : OFFERS);
+        }
+        Request.Status status = request.getStatus();
+        boolean closed = status == Request.Status.CLOSED || status == Request.Status.FULFILLED;
+        boolean open = status == Request.Status.OPEN || status == Request.Status.PROCESSING_PAYMENT ||
+                status == Request.Status.TRANSACTION_PENDING;
+        entry.setStatuses(getStatuses(!closed, !open));
+        entry.setRank(status == Request.Status.TRANSACTION_PENDING ? 0 : status == Request.Status.OPEN ? 1 : 2);
+        entry.setSortDate(request.getPostDate() != null ? request.getPostDate() : new Date(0));
+
+        //don't return the inappropriate offers
+        List<Response> offers = responses.stream().filter(r -> !Boolean.TRUE.equals(r.getInappropriate()))
+                .collect(Collectors.toList());
+        List<ObjectId> responderIds = offers.stream().map(Response::getResponderId)
+                .filter(id -> id != null && ObjectId.isValid(id)).distinct().map(ObjectId::new)
+                .collect(Collectors.toList());
+        Map<String, User> responders = new HashMap<>();
+        if (!responderIds.isEmpty()) {
+            DBCursor<User> users = userCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", responderIds)));
+            users.forEach(u -> responders.put(u.getId(), u));
+            users.close();
+        }
+        List<ResponseDto> dtos = new ArrayList<>();
+        for (Response offer : offers) {
+            ResponseDto d = new ResponseDto(offer);
+            User seller = responders.get(offer.getResponderId());
+            if (seller == null) {
+                offer.setResponseStatus(Response.Status.CLOSED);
+                UxtaUtils.saveVersioned(responseCollection, offer);
+                d.responseStatus = offer.getResponseStatus().toString();
+                d.sellerStatus = status != null ? status.toString() : null;
+            } else {
+                UserDto userDto = new UserDto(seller);
+                if (d.messagesEnabled != null && d.messagesEnabled) {
+                    userDto.phone = seller.getPhone();
+                }
+                d.responder = userDto;
+                d.seller = userDto;
+            }
+            dtos.add(d);
+        }
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(request);
+        dto.responses = dtos;
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, false);
+        }
+        entry.setHistory(dto);
+        return entry;
+    }
+
+    /**
+     * The offer as the user who made it sees it, with the request it was made on and, once accepted, its transaction.
+     */
+    private TimelineEntry getResponderEntry(Request request, Response response, List<Transaction> transactions) {
+        if (response.getResponderId() == null || response.getResponseStatus() == null) {
+            return null;
+        }
+        Transaction transaction = null;
+        //only look for a transaction if the response is accepted, otherwise the transaction may not belong to the response
+        if (response.getResponseStatus().equals(Response.Status.ACCEPTED)) {
+            transaction = transactions.stream().filter(t -> response.getId().equals(t.getResponseId())).findFirst()
+                    .orElse(null);
+        }
+        TimelineEntry entry = new TimelineEntry();
+        entry.setUserId(response.getResponderId());
+        entry.setRequestId(request.getId());
+        entry.setResponseId(response.getId());
+        entry.setOtherUserId(request.getUser() != null ? request.getUser().getId() : null);
+        //is the response really a request to rent or buy something? if so, it's under "requests" rather than "offers"
+        if (transaction != null) {
+            entry.setType(TRANSACTIONS);
+        } else if (response.getIsOfferToBuyOrRent() != null) {
+            entry.setType(response.getIsOfferToBuyOrRent() ? REQUESTS : OFFERS);
+        } else {
+            return null;
+        }
+        Request.Status status = request.getStatus();
+        boolean closed = response.getResponseStatus() == Response.Status.CLOSED || (transaction != null &&
+                (status == Request.Status.CLOSED || status == Request.Status.FULFILLED));
+        boolean open = response.getResponseStatus() == Response.Status.PENDING || (transaction != null &&
+                (status == Request.Status.PROCESSING_PAYMENT || status == Request.Status.TRANSACTION_PENDING));
+        entry.setStatuses(getStatuses(!closed, !open));
+        if (response.getResponseStatus() == Response.Status.ACCEPTED && status == Request.Status.TRANSACTION_PENDING) {
+            entry.setRank(0);
+        } else {
+            entry.setRank(response.getResponseStatus() == Response.Status.PENDING ? 1 : 2);
+        }
+        entry.setSortDate(response.getResponseTime() != null ? response.getResponseTime() : new Date(0));
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(request);
+        dto.responses = Collections.singletonList(new ResponseDto(response));
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, true);
+        }
+        entry.setHistory(dto);
+        return entry;
+    }
+
+    /**
+     * Which single status filters an entry shows up under. An entry that isn't definitely open or closed (e.g. an
+     * accepted offer) shows up under both, and every entry shows up when both are asked for.
+     */
+    private static List<String> getStatuses(boolean showWhenOpen, boolean showWhenClosed) {
+        List<String> statuses = new ArrayList<>();
+        if (showWhenOpen) {
+            statuses.add(OPEN);
+        }
+        if (showWhenClosed) {
+            statuses.add(CLOSED);
+        }
+        return statuses;
+    }
+
+    private static String entryKey(String userId, String responseId) {
+        return userId + ":" + responseId;
+    }
+
+    public static class HistoryPage {
+
+        private final List<HistoryDto> history;
+
+        private final String nextCursor;
+
+        HistoryPage(List<HistoryDto> history, String nextCursor) {
+            this.history = history;
+            this.nextCursor = nextCursor;
+        }
+
+        public List<HistoryDto> getHistory() {
+            return history;
+        }
+
+        /**
+         * @return cursor for the next page, null if this is the last one
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBObject;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Everyone's notification keywords, kept in memory by community so a new post can be matched against all of them in
+ * one pass over its words instead of notifying the whole community. Only users with new request notifications turned
+ * on and a community are kept. Anything that saves a user's keywords, community or notification setting must call
+ * {@link #userChanged(User)} afterwards; changes made directly in mongo show up after a restart.
+ */
+public class KeywordMatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeywordMatcher.class);
+
+    private final JacksonDBCollection<User, String> userCollection;
+
+    // communityId -> keywords of the users in it
+    private final ConcurrentMap<String, Keywords> byCommunity = new ConcurrentHashMap<>();
+
+    // user _id -> the community they're indexed under
+    private final Map<String, String> communityByUser = new HashMap<>();
+
+    private final Timer loads;
+
+    public KeywordMatcher(JacksonDBCollection<User, String> userCollection, MetricRegistry metrics) {
+        this.userCollection = userCollection;
+        this.loads = metrics.timer(MetricRegistry.name(KeywordMatcher.class, "loads"));
+        load();
+    }
+
+    /**
+     * @param communityId
+     * @param texts       the post's name, description, etc, nulls are skipped
+     * @return the _ids of the users in the community with a keyword in any of the texts
+     */
+    public Set<String> match(String communityId, String... texts) {
+        Keywords keywords = communityId != null ? byCommunity.get(communityId) : null;
+        return keywords != null ? keywords.match(texts) : Collections.emptySet();
+    }
+
+    /**
+     * Call after saving a user, re-indexes their keywords under their current community.
+     *
+     * @param user the user as saved
+     */
+    public synchronized void userChanged(User user) {
+        if (user == null || user.getId() == null) {
+            return;
+        }
+        String oldCommunityId = communityByUser.remove(user.getId());
+        if (oldCommunityId != null) {
+            byCommunity.computeIfPresent(oldCommunityId, (id, k) -> k.without(user.getId()));
+        }
+        if (isSubscribed(user)) {
+            byCommunity.compute(user.getCommunityId(), (id, k) -> (k != null ? k : Keywords.EMPTY)
+                    .with(user.getId(), user.getNotificationKeywords()));
+            communityByUser.put(user.getId(), user.getCommunityId());
+        }
+    }
+
+    private synchronized void load() {
+        try (Timer.Context ignored = loads.time()) {
+            BasicDBObject query = new BasicDBObject("notificationKeywords.0", new BasicDBObject("$exists", true))
+                    .append("newRequestNotificationsEnabled", true);
+            DBCursor<User> users = userCollection.find(query, DBProjection.include("_id", "communityId",
+                    "notificationKeywords", "newRequestNotificationsEnabled"));
+            Map<String, Map<String, List<String>>> keywords = new HashMap<>();
+            int count = 0;
+            for (User user : users) {
+                if (isSubscribed(user)) {
+                    keywords.computeIfAbsent(user.getCommunityId(), k -> new HashMap<>())
+                            .put(user.getId(), user.getNotificationKeywords());
+                    communityByUser.put(user.getId(), user.getCommunityId());
+                    count++;
+                }
+            }
+            users.close();
+            for (Map.Entry<String, Map<String, List<String>>> community : keywords.entrySet()) {
+                byCommunity.put(community.getKey(), new Keywords(community.getValue()));
+            }
+            LOGGER.info("Indexed the notification keywords of [" + count + "] users in [" + keywords.size() +
+                    "] communities");
+        }
+    }
+
+    private static boolean isSubscribed(User user) {
+        return Boolean.TRUE.equals(user.getNewRequestNotificationsEnabled()) && user.getCommunityId() != null &&
+                !user.getCommunityId().isEmpty() && user.getNotificationKeywords() != null &&
+                !user.getNotificationKeywords().isEmpty();
+    }
+
+    /**
+     * Immutable keywords of one community's users. A keyword can be several words ("power drill"), and is indexed by
+     * its first word; matching a text walks its words once, checking the keywords that start with each word against
+     * the words after it. Case, accents and punctuation are ignored, as is a plural "s" so "drill" matches "drills".
+     */
+    public static class Keywords {
+
+        public static final Keywords EMPTY = new Keywords(Collections.emptyMap());
+
+        // user _id -> their keywords as given, kept for with/without
+        private final Map<String, List<String>> byUser;
+
+        // first word -> the keywords that start with it
+        private final Map<String, List<Keyword>> byFirstWord;
+
+        public Keywords(Map<String, List<String>> byUser) {
+            this.byUser = Collections.unmodifiableMap(new HashMap<>(byUser));
+            Map<String, List<Keyword>> byFirstWord = new HashMap<>();
+            for (Map.Entry<String, List<String>> user : byUser.entrySet()) {
+                for (String keyword : user.getValue()) {
+                    String[] words = words(keyword);
+                    if (words.length > 0) {
+                        byFirstWord.computeIfAbsent(words[0], k -> new ArrayList<>())
+                                .add(new Keyword(user.getKey(), words));
+                    }
+                }
+            }
+            this.byFirstWord = byFirstWord;
+        }
+
+        public Keywords with(String userId, List<String> keywords) {
+            Map<String, List<String>> users = new HashMap<>(byUser);
+            users.put(userId, new ArrayList<>(keywords));
+            return new Keywords(users);
+        }
+
+        public Keywords without(String userId) {
+            if (!byUser.containsKey(userId)) {
+                return this;
+            }
+            Map<String, List<String>> users = new HashMap<>(byUser);
+            users.remove(userId);
+            return new Keywords(users);
+        }
+
+        public Set<String> match(String... texts) {
+            Set<String> userIds = new HashSet<>();
+            for (String text : texts) {
+                // a keyword has to be within one text, not run from the name into the description
+                String[] words = words(text);
+                for (int i = 0; i < words.length; i++) {
+                    List<Keyword> keywords = byFirstWord.get(words[i]);
+                    if (keywords == null) {
+                        continue;
+                    }
+                    for (Keyword keyword : keywords) {
+                        if (!userIds.contains(keyword.userId) && keyword.matchesAt(words, i)) {
+                            userIds.add(keyword.userId);
+                        }
+                    }
+                }
+            }
+            return userIds;
+        }
+
+        private static String[] words(String text) {
+            String[] words = UxtaUtils.words(text);
+            for (int i = 0; i < words.length; i++) {
+                words[i] = singular(words[i]);
+            }
+            return words;
+        }
+
+        private static String singular(String word) {
+            if (word.length() > 3 && word.endsWith("s") && !word.endsWith("ss")) {
+                return word.substring(0, word.length() - 1);
+            }
+            return word;
+        }
+    }
+
+    private static class Keyword {
+        private final String userId;
+        private final String[] words;
+
+        private Keyword(String userId, String[] words) {
+            this.userId = userId;
+            this.words = words;
+        }
+
+        private boolean matchesAt(String[] text, int start) {
+            if (start + words.length > text.length) {
+                return false;
+            }
+            for (int i = 1; i < words.length; i++) {
+                if (!words[i].equals(text[start + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.iuxta.uxta.service;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.event.RequestChangedEvent;
+import com.iuxta.uxta.event.ResponseCreatedEvent;
+import com.iuxta.uxta.model.OpenItems;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.Response;
+import com.iuxta.uxta.model.Transaction;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DuplicateKeyException;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.mongojack.WriteResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces the limits on open requests, pending offers and open transactions per user. Each user has an
+ * {@link OpenItems} document with the ids of their open items, and a new request or offer claims its place with one
+ * conditional update that only matches while the user is under the limits, so two posts at the same time can't both
+ * squeeze in under them.
+ *
+ * Items leave the lists when a {@link RequestChangedEvent} shows they have been closed, fulfilled, canceled or deleted.
+ * The paths that close, withdraw or cancel an item also remove it straight away, since the event thread can be busy;
+ * the event is still what repairs the lists if one of those is missed.
+ * Adding and removing ids (rather than counting up and down) makes applying the same change twice harmless, so every
+ * change can just be re-applied without knowing what the item's state was before. A user's document is built from the
+ * requests, offers and transactions in mongo the first time they post.
+ */
+public class OpenItemCounter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenItemCounter.class);
+
+    private static final String REQUESTS = "requests";
+    private static final String OFFERS = "offers";
+    private static final String TRANSACTIONS = "transactions";
+    private static final String REQUESTS_AND_TRANSACTIONS = "requestsAndTransactions";
+    private static final String OFFERS_AND_TRANSACTIONS = "offersAndTransactions";
+
+    private JacksonDBCollection<OpenItems, String> openItemsCollection;
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private JacksonDBCollection<Transaction, String> transactionCollection;
+
+    public OpenItemCounter(JacksonDBCollection<OpenItems, String> openItemsCollection,
+                           JacksonDBCollection<Request, String> requestCollection,
+                           JacksonDBCollection<Response, String> responseCollection,
+                           JacksonDBCollection<Transaction, String> transactionCollection,
+                           EventBus eventBus) {
+        this.openItemsCollection = openItemsCollection;
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.transactionCollection = transactionCollection;
+        eventBus.register(this);
+    }
+
+    /**
+     * Claims a place for a new request, call before inserting it and {@link #releaseRequest} if the insert fails.
+     *
+     * @param user
+     * @param requestId the id the new request will be inserted with
+     * @return false if the user already has as many open requests (or requests and transactions) as they're allowed
+     */
+    public boolean reserveRequest(User user, String requestId) {
+        return reserve(user, REQUESTS, REQUESTS_AND_TRANSACTIONS, requestId, UxtaUtils.MAX_OPEN_REQUESTS);
+    }
+
+    public void releaseRequest(User user, String requestId) {
+        remove(user.getId(), requestId, REQUESTS, REQUESTS_AND_TRANSACTIONS);
+    }
+
+    /**
+     * Claims a place for a new offer, call before inserting it and {@link #releaseOffer} if the insert fails.
+     *
+     * @param user
+     * @param responseId the id the new offer will be inserted with
+     * @return false if the user already has as many pending offers (or offers and transactions) as they're allowed
+     */
+    public boolean reserveOffer(User user, String responseId) {
+        return reserve(user, OFFERS, OFFERS_AND_TRANSACTIONS, responseId, UxtaUtils.MAX_OPEN_RESPONSES);
+    }
+
+    public void releaseOffer(User user, String responseId) {
+        remove(user.getId(), responseId, OFFERS, OFFERS_AND_TRANSACTIONS);
+    }
+
+    /**
+     * Frees a request's place as soon as it's closed or deleted, rather than when its {@link RequestChangedEvent} is
+     * handled, so its poster can post again right away.
+     *
+     * @param request the request as saved, with its user
+     */
+    public void requestClosed(Request request) {
+        remove(request.getUser().getId(), request.getId(), REQUESTS, REQUESTS_AND_TRANSACTIONS);
+    }
+
+    /**
+     * Frees an offer's place as soon as it's withdrawn, declined or closed.
+     *
+     * @param response the offer as saved
+     */
+    public void offerClosed(Response response) {
+        remove(response.getResponderId(), response.getId(), OFFERS, OFFERS_AND_TRANSACTIONS);
+    }
+
+    /**
+     * Frees a transaction's place for both users as soon as it's canceled.
+     *
+     * @param transaction the transaction as saved
+     */
+    public void transactionClosed(Transaction transaction) {
+        for (String userId : new String[]{transaction.getBuyerId(), transaction.getSellerId()}) {
+            remove(userId, transaction.getId(), TRANSACTIONS, REQUESTS_AND_TRANSACTIONS, OFFERS_AND_TRANSACTIONS);
+        }
+    }
+
+    @Subscribe
+    public void onRequestChanged(RequestChangedEvent event) {
+        refresh(event.getRequestId());
+    }
+
+    @Subscribe
+    public void onResponseCreated(ResponseCreatedEvent event) {
+        refresh(event.getResponse().getRequestId());
+    }
+
+    /**
+     * Brings the lists up to date with a request, its offers and its transactions.
+     *
+     * @param requestId
+     */
+    public void refresh(String requestId) {
+        Request request = requestCollection.findOneById(requestId, DBProjection.include("status", "user._id"));
+        if (request != null && request.getStatus() == Request.Status.OPEN) {
+            add(request.getUser().getId(), requestId, REQUESTS, REQUESTS_AND_TRANSACTIONS);
+        } else if (request != null) {
+            remove(request.getUser().getId(), requestId, REQUESTS, REQUESTS_AND_TRANSACTIONS);
+        } else {
+            // deleted, we don't know who posted it anymore
+            openItemsCollection.update(new BasicDBObject(REQUESTS, requestId), pull(requestId, REQUESTS,
+                    REQUESTS_AND_TRANSACTIONS), false, true);
+        }
+
+        DBCursor<Response> responses = responseCollection.find(new BasicDBObject("requestId", requestId),
+                DBProjection.include("responderId", "responseStatus"));
+        for (Response response : responses) {
+            if (response.getResponseStatus() == Response.Status.PENDING) {
+                add(response.getResponderId(), response.getId(), OFFERS, OFFERS_AND_TRANSACTIONS);
+            } else {
+                remove(response.getResponderId(), response.getId(), OFFERS, OFFERS_AND_TRANSACTIONS);
+            }
+        }
+        responses.close();
+
+        DBCursor<Transaction> transactions = transactionCollection.find(new BasicDBObject("requestId", requestId),
+                DBProjection.include("buyerId", "sellerId", "finalPrice", "canceled"));
+        for (Transaction transaction : transactions) {
+            String[] fields = {TRANSACTIONS, REQUESTS_AND_TRANSACTIONS, OFFERS_AND_TRANSACTIONS};
+            for (String userId : new String[]{transaction.getBuyerId(), transaction.getSellerId()}) {
+                if (isOpen(transaction)) {
+                    add(userId, transaction.getId(), fields);
+                } else {
+                    remove(userId, transaction.getId(), fields);
+                }
+            }
+        }
+        transactions.close();
+    }
+
+    private boolean reserve(User user, String field, String totalField, String id, int max) {
+        BasicDBObject query = new BasicDBObject("_id", user.getId());
+        // a list has fewer than n ids when it has nothing at index n - 1
+        query.put(field + "." + (max - 1), new BasicDBObject("$exists", false));
+        query.put(totalField + "." + (UxtaUtils.MAX_OPEN_ITEMS - 1), new BasicDBObject("$exists", false));
+        BasicDBObject update = new BasicDBObject("$addToSet", new BasicDBObject(field, id).append(totalField, id));
+        WriteResult<OpenItems, String> result = openItemsCollection.update(query, update);
+        if (result.getN() == 0 && openItemsCollection.findOneById(user.getId(), DBProjection.include("_id")) == null) {
+            load(user.getId());
+            result = openItemsCollection.update(query, update);
+        }
+        if (result.getN() == 0) {
+            LOGGER.info("User [" + user.getFirstName() + ":" + user.getId() + "] has reached the limit on open " +
+                    field + " and transactions");
+            return false;
+        }
+        return true;
+    }
+
+    private void add(String userId, String id, String... fields) {
+        if (userId == null) {
+            return;
+        }
+        BasicDBObject ids = new BasicDBObject();
+        for (String field : fields) {
+            ids.append(field, id);
+        }
+        // users without a document get one built from scratch when they next post
+        openItemsCollection.update(new BasicDBObject("_id", userId), new BasicDBObject("$addToSet", ids));
+    }
+
+    private void remove(String userId, String id, String... fields) {
+        if (userId == null) {
+            return;
+        }
+        openItemsCollection.update(new BasicDBObject("_id", userId), pull(id, fields));
+    }
+
+    private static BasicDBObject pull(String id, String... fields) {
+        BasicDBObject ids = new BasicDBObject();
+        for (String field : fields) {
+            ids.append(field, id);
+        }
+        return new BasicDBObject("$pull", ids);
+    }
+
+    private static boolean isOpen(Transaction transaction) {
+        return transaction.getFinalPrice() == null && !transaction.getCanceled();
+    }
+
+    /**
+     * Builds a user's document from their open items in mongo.
+     *
+     * @param userId
+     */
+    private void load(String userId) {
+        OpenItems openItems = new OpenItems();
+        openItems.setId(userId);
+        BasicDBObject requestQuery = new BasicDBObject("user._id", new ObjectId(userId))
+                .append("status", Request.Status.OPEN.name());
+        DBCursor<Request> requests = requestCollection.find(requestQuery, DBProjection.include("_id"));
+        requests.forEach(r -> openItems.getRequests().add(r.getId()));
+        requests.close();
+
+        BasicDBObject responseQuery = new BasicDBObject("responderId", userId)
+                .append("responseStatus", Response.Status.PENDING.name());
+        DBCursor<Response> responses = responseCollection.find(responseQuery, DBProjection.include("_id"));
+        responses.forEach(r -> openItems.getOffers().add(r.getId()));
+        responses.close();
+
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("buyerId", userId));
+        or.add(new BasicDBObject("sellerId", userId));
+        // matches transactions where finalPrice is missing as well as null
+        BasicDBObject transactionQuery = new BasicDBObject("$or", or).append("finalPrice", null)
+                .append("canceled", new BasicDBObject("$ne", true));
+        DBCursor<Transaction> transactions = transactionCollection.find(transactionQuery, DBProjection.include("_id"));
+        transactions.forEach(t -> openItems.getTransactions().add(t.getId()));
+        transactions.close();
+
+        openItems.getRequestsAndTransactions().addAll(openItems.getRequests());
+        openItems.getRequestsAndTransactions().addAll(openItems.getTransactions());
+        openItems.getOffersAndTransactions().addAll(openItems.getOffers());
+        openItems.getOffersAndTransactions().addAll(openItems.getTransactions());
+        try {
+            openItemsCollection.insert(openItems);
+        } catch (DuplicateKeyException e) {
+            // built by another request at the same time
+        }
+        LOGGER.info("Counted [" + openItems.getRequests().size() + "] open requests, [" +
+                openItems.getOffers().size() + "] pending offers and [" + openItems.getTransactions().size() +
+                "] open transactions for user [" + userId + "]");
+    }
+}
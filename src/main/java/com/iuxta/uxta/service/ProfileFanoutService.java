@@ -0,0 +1,161 @@
+package com.iuxta.uxta.service;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.iuxta.uxta.UxtaUtils;
+import com.iuxta.uxta.event.ProfileChangedEvent;
+import com.iuxta.uxta.event.RequestChangedEvent;
+import com.iuxta.uxta.model.ProfileFanout;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.Response;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.mongojack.WriteResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Requests carry a copy of the user who posted them, which the feed shows as is. When a profile is saved this records
+ * which fields changed in the user's {@link ProfileFanout} marker and returns, and the domain event thread then copies
+ * just those fields into all of the user's requests with one multi-document update. Their responses don't carry a copy
+ * (the responder's name is looked up when they're read), but their versions are bumped too so an ETag on a request's
+ * responses changes when a responder renames themselves. The history timelines of the user's requests, and of the
+ * requests they offered on, are rebuilt afterwards since they copy both. Markers that still have fields
+ * when the app starts (it stopped before getting to them) are applied again; applying one twice is harmless.
+ */
+public class ProfileFanoutService implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProfileFanoutService.class);
+
+    private JacksonDBCollection<ProfileFanout, String> fanoutCollection;
+    private JacksonDBCollection<User, String> userCollection;
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private EventBus eventBus;
+
+    public ProfileFanoutService(JacksonDBCollection<ProfileFanout, String> fanoutCollection,
+                                JacksonDBCollection<User, String> userCollection,
+                                JacksonDBCollection<Request, String> requestCollection,
+                                JacksonDBCollection<Response, String> responseCollection,
+                                EventBus eventBus) {
+        this.fanoutCollection = fanoutCollection;
+        this.userCollection = userCollection;
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.eventBus = eventBus;
+        eventBus.register(this);
+    }
+
+    @Override
+    public void start() throws Exception {
+        DBCursor<ProfileFanout> pending = fanoutCollection.find(new BasicDBObject("fields.0",
+                new BasicDBObject("$exists", true)), DBProjection.include("_id"));
+        for (ProfileFanout fanout : pending) {
+            eventBus.post(new ProfileChangedEvent(fanout.getId()));
+        }
+        pending.close();
+    }
+
+    @Override
+    public void stop() throws Exception {
+
+    }
+
+    /**
+     * Call after saving a user's profile.
+     *
+     * @param before the user as they were loaded, before the changes
+     * @param after  the user as saved
+     */
+    public void userChanged(User before, User after) {
+        List<String> fields = changedFields(userCollection.convertToDbObject(before),
+                userCollection.convertToDbObject(after));
+        if (fields.isEmpty()) {
+            return;
+        }
+        BasicDBObject update = new BasicDBObject("$addToSet", new BasicDBObject("fields",
+                new BasicDBObject("$each", fields)))
+                .append("$set", new BasicDBObject("requestedDate", new Date()));
+        fanoutCollection.update(new BasicDBObject("_id", after.getId()), update, true, false);
+        eventBus.post(new ProfileChangedEvent(after.getId()));
+    }
+
+    @Subscribe
+    public void onProfileChanged(ProfileChangedEvent event) {
+        apply(event.getUserId());
+    }
+
+    /**
+     * Copies the fields in the user's marker from their current profile into their requests, and bumps the versions of
+     * their responses.
+     *
+     * @param userId
+     */
+    public void apply(String userId) {
+        ProfileFanout fanout = fanoutCollection.findOneById(userId);
+        User user = userCollection.findOneById(userId);
+        if (fanout == null || fanout.getFields() == null || fanout.getFields().isEmpty() || user == null) {
+            return;
+        }
+        DBObject current = userCollection.convertToDbObject(user);
+        BasicDBObject set = new BasicDBObject();
+        for (String field : fanout.getFields()) {
+            set.append("user." + field, current.get(field));
+        }
+        BasicDBObject bumpVersion = new BasicDBObject("version", UxtaUtils.nextVersion(null));
+        BasicDBObject update = new BasicDBObject("$set", set).append("$max", bumpVersion);
+        BasicDBObject byUser = new BasicDBObject("user._id", new ObjectId(userId));
+        WriteResult<Request, String> result = requestCollection.updateMulti(byUser, update);
+        BasicDBObject byResponder = new BasicDBObject("responderId", userId);
+        responseCollection.updateMulti(byResponder, new BasicDBObject("$max", bumpVersion));
+
+        // only clear the marker if nothing was added to it in the meantime, otherwise the next event applies it again
+        fanoutCollection.update(new BasicDBObject("_id", userId).append("requestedDate", fanout.getRequestedDate()),
+                new BasicDBObject("$set", new BasicDBObject("fields", new ArrayList<>())
+                        .append("appliedDate", new Date())
+                        .append("appliedCount", result.getN())));
+        LOGGER.info("Copied " + fanout.getFields() + " to [" + result.getN() + "] requests of user [" + userId + "]");
+
+        // the users' history timelines have copies of the requests too, and of the responders on the requests they
+        // offered on
+        Set<String> requestIds = new LinkedHashSet<>();
+        DBCursor<Request> requests = requestCollection.find(byUser, DBProjection.include("_id"));
+        for (Request request : requests) {
+            requestIds.add(request.getId());
+        }
+        requests.close();
+        for (Object requestId : responseCollection.distinct("requestId", byResponder)) {
+            requestIds.add(requestId.toString());
+        }
+        requestIds.forEach(id -> eventBus.post(new RequestChangedEvent(id)));
+    }
+
+    /**
+     * @return the top level fields whose values differ between two versions of a document, other than _id
+     */
+    public static List<String> changedFields(DBObject before, DBObject after) {
+        Set<String> keys = new LinkedHashSet<>(before.keySet());
+        keys.addAll(after.keySet());
+        keys.remove("_id");
+        List<String> changed = new ArrayList<>();
+        for (String key : keys) {
+            if (!Objects.equals(before.get(key), after.get(key))) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+}
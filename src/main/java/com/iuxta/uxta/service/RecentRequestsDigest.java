@@ -0,0 +1,269 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.iuxta.uxta.firebase.FirebaseUtils;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
+import com.iuxta.uxta.model.DigestWindow;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DuplicateKeyException;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells users about the requests posted in their community since the last digest. Every interval one server leases
+ * the window since the last one, reads the new requests with one query and the users who want notifications with one
+ * query per community that has any, then works out each user's own count in memory (leaving out their posts, posts
+ * from users they've blocked and, if they picked keywords, posts that don't match them) and enqueues all of the
+ * notifications with one insert. The window only moves on once that insert succeeds.
+ */
+public class RecentRequestsDigest implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecentRequestsDigest.class);
+
+    private static final String KEY = "recent-requests";
+
+    // requests get their postDate a moment before they're inserted, so leave the newest ones for the next window
+    private static final long SETTLE_MILLIS = 60000;
+
+    // after a long outage, only tell people about what was posted recently
+    private static final int MAX_WINDOWS_BEHIND = 4;
+
+    private final JacksonDBCollection<DigestWindow, String> windowCollection;
+    private final JacksonDBCollection<Request, String> requestCollection;
+    private final JacksonDBCollection<User, String> userCollection;
+    private final NotificationOutbox notificationOutbox;
+    private final KeywordMatcher keywordMatcher;
+    private final long intervalMillis;
+    private final Timer runs;
+    private final Meter enqueued;
+    private final ScheduledExecutorService scheduler;
+
+    public RecentRequestsDigest(JacksonDBCollection<DigestWindow, String> windowCollection,
+                                JacksonDBCollection<Request, String> requestCollection,
+                                JacksonDBCollection<User, String> userCollection,
+                                NotificationOutbox notificationOutbox, KeywordMatcher keywordMatcher,
+                                MetricRegistry metrics, ScheduledExecutorService scheduler, Duration interval) {
+        this.windowCollection = windowCollection;
+        this.requestCollection = requestCollection;
+        this.userCollection = userCollection;
+        this.notificationOutbox = notificationOutbox;
+        this.keywordMatcher = keywordMatcher;
+        this.scheduler = scheduler;
+        this.intervalMillis = interval.toMilliseconds();
+        this.runs = metrics.timer(MetricRegistry.name(RecentRequestsDigest.class, "runs"));
+        this.enqueued = metrics.meter(MetricRegistry.name(RecentRequestsDigest.class, "enqueued"));
+    }
+
+    @Override
+    public void start() throws Exception {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (Exception e) {
+                LOGGER.error("Could not send the recent requests digest", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        // the scheduler is managed, it's shut down along with the app
+    }
+
+    /**
+     * Sends the digest for the window since the last one, unless another server already has or is.
+     *
+     * @return how many notifications were enqueued
+     */
+    public int run() {
+        Date now = new Date();
+        Date end = new Date(now.getTime() - SETTLE_MILLIS);
+        DigestWindow claim = claimWindow(now, end);
+        if (claim == null) {
+            return 0;
+        }
+        Date oldest = new Date(end.getTime() - MAX_WINDOWS_BEHIND * intervalMillis);
+        Date start = claim.getEnd().before(oldest) ? oldest : claim.getEnd();
+        Map<String, List<Request>> postsByCommunity;
+        List<NotificationOutbox.Addressed> notifications = new ArrayList<>();
+        try (Timer.Context ignored = runs.time()) {
+            postsByCommunity = findPosts(start, end);
+            for (Map.Entry<String, List<Request>> community : postsByCommunity.entrySet()) {
+                List<Request> posts = community.getValue();
+                Map<String, Set<String>> interested = new HashMap<>();
+                for (Request post : posts) {
+                    interested.put(post.getId(), keywordMatcher.match(community.getKey(), post.getItemName(),
+                            post.getDescription()));
+                }
+                DBCursor<User> users = userCollection.find(new BasicDBObject("communityId", community.getKey())
+                        .append("newRequestNotificationsEnabled", true), DBProjection.include("_id", "blockedUsers",
+                        "notificationKeywords"));
+                for (User user : users) {
+                    List<Request> postsForUser = postsFor(user, posts, interested);
+                    if (!postsForUser.isEmpty()) {
+                        notifications.add(new NotificationOutbox.Addressed(user.getId(), digestFor(postsForUser)));
+                    }
+                }
+                users.close();
+            }
+            notificationOutbox.enqueueAll(notifications);
+        } catch (RuntimeException e) {
+            // nothing was enqueued, leave the window where it was so the next run sends it
+            releaseWindow(claim);
+            throw e;
+        }
+        enqueued.mark(notifications.size());
+        finishWindow(claim, end, notifications.size());
+        LOGGER.info("Enqueued [" + notifications.size() + "] digests of the requests posted in [" +
+                postsByCommunity.size() + "] communities from [" + start + "] to [" + end + "]");
+        return notifications.size();
+    }
+
+    /**
+     * Leases the window after the last one, only one server can hold it at a time. The window's end only moves once
+     * its notifications are enqueued, so a run that fails (or a server that dies) part way leaves it to the next run.
+     *
+     * @return the window as claimed, whose end is where this one starts, or null if another server has it or just
+     * sent it
+     */
+    private DigestWindow claimWindow(Date now, Date end) {
+        // if this server dies part way, the lease has run out by the other servers' next run
+        Date until = new Date(now.getTime() + intervalMillis);
+        DigestWindow last = windowCollection.findOneById(KEY);
+        if (last == null) {
+            DigestWindow window = new DigestWindow();
+            window.setId(KEY);
+            window.setEnd(new Date(end.getTime() - intervalMillis));
+            window.setClaimedUntil(until);
+            try {
+                windowCollection.insert(window);
+            } catch (DuplicateKeyException e) {
+                return null;
+            }
+            return window;
+        }
+        // another server ran it moments ago, with more than one server their schedules drift apart
+        if (end.getTime() - last.getEnd().getTime() < intervalMillis / 2) {
+            return null;
+        }
+        if (last.getClaimedUntil() != null && last.getClaimedUntil().after(now)) {
+            return null;
+        }
+        int claimed = windowCollection.update(new BasicDBObject("_id", KEY).append("end", last.getEnd())
+                        .append("claimedUntil", last.getClaimedUntil()),
+                new BasicDBObject("$set", new BasicDBObject("claimedUntil", until))).getN();
+        if (claimed == 0) {
+            return null;
+        }
+        last.setClaimedUntil(until);
+        return last;
+    }
+
+    /**
+     * Moves the window's end up now that everything before it is enqueued, and lets go of it.
+     */
+    private void finishWindow(DigestWindow claim, Date end, int sentCount) {
+        int finished = windowCollection.update(new BasicDBObject("_id", KEY)
+                        .append("claimedUntil", claim.getClaimedUntil()),
+                new BasicDBObject("$set", new BasicDBObject("end", end).append("sentCount", sentCount))
+                        .append("$unset", new BasicDBObject("claimedUntil", ""))).getN();
+        if (finished == 0) {
+            LOGGER.warn("The recent requests digest from [" + claim.getEnd() + "] took longer than its lease, " +
+                    "another server may send it again");
+        }
+    }
+
+    private void releaseWindow(DigestWindow claim) {
+        try {
+            windowCollection.update(new BasicDBObject("_id", KEY).append("claimedUntil", claim.getClaimedUntil()),
+                    new BasicDBObject("$unset", new BasicDBObject("claimedUntil", "")));
+        } catch (RuntimeException e) {
+            // the lease runs out on its own
+            LOGGER.error("Could not release the recent requests digest window", e);
+        }
+    }
+
+    /**
+     * @return the open, appropriate, unexpired requests (not offers) posted in the window, by community
+     */
+    private Map<String, List<Request>> findPosts(Date start, Date end) {
+        BasicDBObject query = new BasicDBObject("status", Request.Status.OPEN.name())
+                .append("postDate", new BasicDBObject("$gte", start).append("$lt", end))
+                .append("communityId", new BasicDBObject("$ne", null))
+                .append("inappropriate", new BasicDBObject("$ne", true))
+                .append("type", new BasicDBObject("$in", Arrays.asList("buying", "renting")));
+        BasicDBList notExpired = new BasicDBList();
+        notExpired.add(new BasicDBObject("expireDate", new BasicDBObject("$gt", new Date())));
+        notExpired.add(new BasicDBObject("expireDate", null));
+        query.put("$or", notExpired);
+        DBCursor<Request> cursor = requestCollection.find(query, DBProjection.include("_id", "communityId",
+                "itemName", "description", "user._id", "user.firstName", "postDate"))
+                .sort(new BasicDBObject("postDate", 1));
+        Map<String, List<Request>> posts = new LinkedHashMap<>();
+        for (Request post : cursor) {
+            posts.computeIfAbsent(post.getCommunityId(), k -> new ArrayList<>()).add(post);
+        }
+        cursor.close();
+        return posts;
+    }
+
+    /**
+     * @param user       with their _id, blockedUsers and notificationKeywords
+     * @param posts      the community's new requests
+     * @param interested post _id -> the _ids of the users with a keyword it matches
+     * @return the posts the user should hear about
+     */
+    public static List<Request> postsFor(User user, List<Request> posts, Map<String, Set<String>> interested) {
+        boolean hasKeywords = user.getNotificationKeywords() != null && !user.getNotificationKeywords().isEmpty();
+        List<String> blocked = user.getBlockedUsers() != null ? user.getBlockedUsers() : Collections.emptyList();
+        List<Request> postsForUser = new ArrayList<>();
+        for (Request post : posts) {
+            String posterId = post.getUser() != null ? post.getUser().getId() : null;
+            if (user.getId().equals(posterId) || blocked.contains(posterId)) {
+                continue;
+            }
+            if (hasKeywords && !interested.getOrDefault(post.getId(), Collections.emptySet()).contains(user.getId())) {
+                continue;
+            }
+            postsForUser.add(post);
+        }
+        return postsForUser;
+    }
+
+    public static NotificationPayload digestFor(List<Request> posts) {
+        NotificationPayload notification = new NotificationPayload();
+        notification.put("title", "Recent Requests");
+        notification.put("type", FirebaseUtils.NotificationTypes.request_notification.name());
+        if (posts.size() == 1) {
+            Request post = posts.get(0);
+            notification.put("message", post.getUser().getFirstName() + " requested a " + post.getItemName() +
+                    ". Can you help out?");
+        } else {
+            notification.put("message", "There are " + posts.size() + " new requests in your community.");
+        }
+        return notification;
+    }
+}
@@ -3,14 +3,13 @@ package com.iuxta.uxta.service;
 import com.iuxta.uxta.dto.RequestFlagDto;
 import com.iuxta.uxta.exception.NotAllowedException;
 import com.iuxta.uxta.exception.NotFoundException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.Request;
 import com.iuxta.uxta.model.RequestFlag;
 import com.iuxta.uxta.model.User;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import org.json.JSONObject;
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
@@ -30,14 +29,16 @@ public class RequestFlagService {
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<RequestFlag, String> requestFlagCollection;
     private JacksonDBCollection<User, String> userCollection;
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
+    private AdminRoster adminRoster;
 
 
-    public RequestFlagService(JacksonDBCollection<Request, String> requestCollection, JacksonDBCollection<RequestFlag, String> requestFlagCollection, JacksonDBCollection<User, String> userCollection, CcsServer ccsServer) {
+    public RequestFlagService(JacksonDBCollection<Request, String> requestCollection, JacksonDBCollection<RequestFlag, String> requestFlagCollection, JacksonDBCollection<User, String> userCollection, NotificationOutbox notificationOutbox, AdminRoster adminRoster) {
         this.requestCollection = requestCollection;
         this.requestFlagCollection = requestFlagCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
+        this.adminRoster = adminRoster;
     }
 
     public void canCreateNewFlag(User user, String requestId) {
@@ -76,17 +77,15 @@ public class RequestFlagService {
     }
 
     private void sendAdminFlagNotification(Request request) {
-        DBObject findAdmins = new BasicDBObject("admin", true);
-        DBCursor cursor = userCollection.find(findAdmins);
-        List<User> admins = cursor.toArray();
+        List<User> admins = adminRoster.getAdmins();
         if (admins != null && admins.size() > 0) {
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "Request has been flagged!");
             String body = "Request [" + request.getId() + " - " + request.getItemName() + "] has been flagged! Review ASAP!";
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                notificationOutbox.enqueue(admin, notification);
             }        }
     }
 }
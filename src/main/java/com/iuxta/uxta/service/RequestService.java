@@ -5,25 +5,29 @@ import com.iuxta.uxta.dto.RequestDto;
 import com.iuxta.uxta.exception.BadRequestException;
 import com.iuxta.uxta.exception.NoCommunityException;
 import com.iuxta.uxta.exception.NotFoundException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
+import com.iuxta.uxta.firebase.NotificationDispatcher;
 import com.iuxta.uxta.model.*;
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBObject;
 import org.apache.commons.lang3.StringUtils;
 import org.bson.types.ObjectId;
-import org.json.JSONObject;
 import org.mongojack.DBCursor;
+import org.mongojack.DBProjection;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -33,41 +37,57 @@ import java.util.stream.Stream;
  */
 public class RequestService {
 
-    private JacksonDBCollection<Category, String> categoriesCollection;
+    private CategorySnapshot categorySnapshot;
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<User, String> userCollection;
     private JacksonDBCollection<SearchTerm, String> searchTermsCollection;
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestService.class);
     private JacksonDBCollection<Community, String> communitiesCollection;
-    static final long ONE_MINUTE_IN_MILLIS = 60000;
     private ResponseService responseService;
+    private NotificationDispatcher notificationDispatcher;
+    private AdminRoster adminRoster;
+    private KeywordMatcher keywordMatcher;
 
     public RequestService() {
 
     }
 
-    public RequestService(JacksonDBCollection<Category, String> categoriesCollection,
+    public RequestService(CategorySnapshot categorySnapshot,
                           JacksonDBCollection<Request, String> requestsCollection,
-                          CcsServer ccsServer,
+                          NotificationOutbox notificationOutbox,
                           JacksonDBCollection<User, String> userCollection,
                           ResponseService responseService,
                           JacksonDBCollection<SearchTerm, String> searchTermsCollection,
-                          JacksonDBCollection<Community, String> communitiesCollection) {
-        this.categoriesCollection = categoriesCollection;
+                          JacksonDBCollection<Community, String> communitiesCollection,
+                          NotificationDispatcher notificationDispatcher,
+                          AdminRoster adminRoster,
+                          KeywordMatcher keywordMatcher) {
+        this.categorySnapshot = categorySnapshot;
         this.requestCollection = requestsCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
         this.responseService = responseService;
         this.searchTermsCollection = searchTermsCollection;
         this.communitiesCollection = communitiesCollection;
+        this.notificationDispatcher = notificationDispatcher;
+        this.adminRoster = adminRoster;
+        this.keywordMatcher = keywordMatcher;
     }
 
     public Request transformRequestDto(RequestDto dto, User user) {
+        if (dto.expireDate != null && dto.expireDate.before(new Date())) {
+            String msg = "Could not create request because it has already expired";
+            LOGGER.error(msg);
+            throw new BadRequestException(msg);
+        }
         Request request = new Request();
         request.setUser(user);
         request.setPostDate(dto.postDate != null ? dto.postDate : new Date());
         populateRequest(request, dto);
+        if (request.getLocation() == null) {
+            request.setLocation(user.getHomeLocation());
+        }
         request.setCommunityId(user.getCommunityId());
         request.setStatus(Request.Status.OPEN);
         request.setInappropriate(false);
@@ -75,32 +95,6 @@ public class RequestService {
         return request;
     }
 
-    /**
-     * Returns true if the user can make a new request. User CANNOT make a new request if they have 5 or more
-     * open requests
-     *
-     * @param user
-     * @return
-     */
-    public boolean canCreateRequest(User user) {
-        BasicDBObject query = new BasicDBObject();
-        query.put("user.userId", user.getUserId());
-        query.put("status", Request.Status.OPEN.name());
-        DBCursor userRequests = requestCollection.find(query);
-        List<Request> userRs = userRequests.toArray();
-        int openTs = responseService.getOpenTransactions(user);
-        int totalOpen = openTs + userRs.size();
-        String msg = "User [" + user.getFirstName() + ":" + user.getId() + "] has [" +
-                userRequests.size() + "] open requests and [" + openTs + "] open transactions.";
-        if (userRs.size() < UxtaUtils.MAX_OPEN_REQUESTS && (totalOpen < 20)) {
-            LOGGER.info(msg);
-            return true;
-        } else {
-            LOGGER.info("Cannot make request: " + msg);
-            return false;
-        }
-    }
-
     public void populateRequest(Request request, RequestDto dto) {
         if (dto.itemName.isEmpty()) {
             String msg = "Could not create request because name cannot be empty";
@@ -109,12 +103,15 @@ public class RequestService {
         }
         request.setItemName(dto.itemName);
         request.setExpireDate(dto.expireDate);
-        if (dto.expireDate != null && dto.expireDate.before(new Date())) {
+        if (dto.expireDate != null && dto.expireDate.before(new Date())
+                && request.getStatus() == Request.Status.OPEN) {
+            // closed the same way the ExpirySweeper would, so it shows up in the expired feed
             request.setStatus(Request.Status.CLOSED);
+            request.setExpiredDate(new Date());
             responseService.alertRespondersOfClosedRequest(request);
         }
         if (dto.category != null) {
-            Category category = categoriesCollection.findOneById(dto.category.id);
+            Category category = categorySnapshot.get(dto.category.id);
             if (category == null) {
                 throw new NotFoundException("Could not create request because category ["
                         + dto.category.id + "] was not found.");
@@ -128,48 +125,15 @@ public class RequestService {
                 throw new NotFoundException("Could not create request because type [" + dto.type + "] is not recognized");
             }
         }
-        request.setDescription(dto.description);
-        request.setPhotos(dto.photos);
-    }
-
-    public void sendRecentRequestsNotification(User user) {
-        if (user.getCommunityId() == null || user.getCommunityId().isEmpty()) {
-            return;
-        }
-        LOGGER.info("Fetching recent requests for user [" + user.getId() + "]");
-        JSONObject notification = new JSONObject();
-        notification.put("title", "Recent Requests");
-        notification.put("type", FirebaseUtils.NotificationTypes.request_notification.name());
-        String body = "";
-        boolean newRequests = false;
-        if (user.getNewRequestNotificationsEnabled()) {
-            BasicDBObject query = getCommunityQuery(user.getCommunityId());
-            setAppropriateQuery(query);
-            setNotBlockedQuery(query, user);
-            setNotExpiredQuery(query);
-            addNotMineQuery(query, user.getUserId());
-            setRequestingQuery(query);
-            addLast15MinsQuery(query);
-            DBCursor userRequests = requestCollection.find(query);
-            List<Request> requestsNearHome = userRequests.toArray();
-            Integer size = requestsNearHome.size();
-            if (size > 1) {
-                body = "There are " + size + " new requests in your community.";
-                newRequests = true;
-            } else if (requestsNearHome.size() == 1) {
-                Request req = requestsNearHome.get(0);
-                body = req.getUser().getFirstName() + " requested a " +
-                        req.getItemName() + ". Can you help out?";
-                newRequests = true;
+        if (dto.latitude != null && dto.longitude != null) {
+            if (Math.abs(dto.latitude) > 90 || Math.abs(dto.longitude) > 180) {
+                throw new BadRequestException("Could not save request because [" + dto.latitude + ", " +
+                        dto.longitude + "] is not a valid location");
             }
-            userRequests.close();
-        }
-        LOGGER.info("Notification for user [" + user.getId() + "]: " + body);
-        notification.put("message", body);
-        if (newRequests) {
-            FirebaseUtils.sendFcmMessage(user, null, notification, ccsServer);
+            request.setLocation(new GeoJsonPoint(dto.longitude, dto.latitude));
         }
-
+        request.setDescription(dto.description);
+        request.setPhotos(dto.photos);
     }
 
     private BasicDBObject getCommunityQuery(String communityId) {
@@ -187,8 +151,9 @@ public class RequestService {
         searchTermsCollection.insert(term);
     }
 
-    public List<Request> findRequests(Integer offset, Integer limit, Boolean expired,
-                                      Boolean includeMine, String searchTerm, String sort, User principal, String type) {
+    public List<Request> findRequests(Integer offset, Integer limit, Boolean expired, Boolean includeMine,
+                                      String searchTerm, String sort, User principal, String type, String cursor,
+                                      SearchParams near) {
         if (searchTerm != null && !searchTerm.isEmpty()) {
             logSearch(searchTerm, principal);
         }
@@ -199,17 +164,16 @@ public class RequestService {
         }
         BasicDBObject query = getCommunityQuery(principal.getCommunityId());
         offset = (offset != null ? offset : 0);
-        limit = (limit == null || limit > UxtaUtils.MAX_LIMIT) ? UxtaUtils.DEFAULT_LIMIT : limit;
+        limit = UxtaUtils.getLimit(limit);
         setAppropriateQuery(query);
         setNotBlockedQuery(query, principal);
         query.put("duplicate", false);
 
+        // the ExpirySweeper closes requests once they expire and marks them with expiredDate, so open ones haven't
         if (expired != null && expired) {
-            BasicDBObject expiredQuery = new BasicDBObject();
-            expiredQuery.append("$lte", new Date());
-            query.put("expireDate", expiredQuery);
-        } else if (expired != null && !expired) {
-            setNotExpiredQuery(query);
+            query.put("expiredDate", new BasicDBObject("$ne", null));
+        } else {
+            query.put("status", Request.Status.OPEN.name());
         }
 
         if (includeMine != null && !includeMine) {
@@ -224,91 +188,177 @@ public class RequestService {
             setOffersQuery(query);
         }
 
-        query.put("status", "OPEN");
+        // the text search is just another filter on the same query so mongo can do the matching, ranking and paging
+        // in one pass instead of us pulling the whole community into memory first
+        boolean isSearch = StringUtils.isNotBlank(searchTerm);
+        if (isSearch) {
+            BasicDBObject searchQuery = new BasicDBObject();
+            searchQuery.append("$search", searchTerm);
+            query.put("$text", searchQuery);
+        }
+
+        boolean newest = sort != null && sort.equals("newest");
+        // $geoNear can't be combined with $text, so a search is always ranked by best match
+        boolean byDistance = isDistanceSort(sort) && !isSearch;
+        if (cursor != null && isKeysetPaged(sort, searchTerm)) {
+            PageCursor.decode(cursor, newest).addToQuery(query);
+            offset = 0;
+        }
+
+        if (byDistance) {
+            List<Request> requests = findNearest(query, principal, near, offset, limit);
+            refreshRequestUsers(requests);
+            return requests;
+        }
 
         DBCursor userRequests;
-        if (sort != null && sort.equals("newest")) {
-            if (StringUtils.isBlank(searchTerm)) {
-                //go ahead and add offset and limit here
-                userRequests = requestCollection.find(query)
-                        .sort(new BasicDBObject("postDate", -1))
-                        .skip(offset)
-                        .limit(limit);
-            } else {
-                userRequests = requestCollection.find(query).sort(new BasicDBObject("postDate", -1));
-            }
+        if (newest) {
+            userRequests = requestCollection.find(query)
+                    .sort(PageCursor.newestSort());
+        } else if (isSearch) {
+            // best match
+            BasicDBObject scoreProjection = new BasicDBObject();
+            scoreProjection.append("$meta", "textScore");
+            BasicDBObject projectionParent = new BasicDBObject();
+            projectionParent.put("score", scoreProjection);
+            userRequests = requestCollection.find(query, projectionParent)
+                    .sort(new BasicDBObject("score", scoreProjection));
         } else {
-            // distance is the default sort, best match should also use this for the initial query
-            if (StringUtils.isBlank(searchTerm)) {
-                //go ahead and add offset and limit here
-                userRequests = requestCollection.find(query).skip(offset).limit(limit);
-            } else {
-                userRequests = requestCollection.find(query);
-            }
+            // sort by _id so the pages are stable
+            userRequests = requestCollection.find(query)
+                    .sort(PageCursor.idSort());
         }
-        List<Request> requests = userRequests.toArray();
+        List<Request> requests = userRequests.skip(offset).limit(limit).toArray();
         userRequests.close();
 
-        if (searchTerm != null && !searchTerm.isEmpty() && requests.size() > 0) {
-            query = new BasicDBObject();
-            BasicDBObject searchQuery = new BasicDBObject();
-            searchQuery.append("$search", searchTerm);
-            query.put("$text", searchQuery);
+        //update the user's info
+        refreshRequestUsers(requests);
+        return requests;
+    }
+
+    /**
+     * Returns the token for the page after this one, or null if this was the last page or the results were ranked
+     * by text score (best match can only be paged with offset).
+     */
+    public String getNextCursor(List<Request> requests, Integer limit, String sort, String searchTerm) {
+        if (!isKeysetPaged(sort, searchTerm) || requests.size() < UxtaUtils.getLimit(limit)) {
+            return null;
+        }
+        boolean newest = sort != null && sort.equals("newest");
+        return PageCursor.after(requests.get(requests.size() - 1), newest).encode();
+    }
+
+    private boolean isKeysetPaged(String sort, String searchTerm) {
+        return (sort != null && sort.equals("newest")) ||
+                (StringUtils.isBlank(searchTerm) && !isDistanceSort(sort));
+    }
 
-            BasicDBObject inQuery = new BasicDBObject();
-            List<ObjectId> ids = requests.stream().map(r -> new ObjectId(r.getId())).collect(Collectors.toList());
-            inQuery.put("$in", ids);
-            query.put("_id", inQuery);
-            if (sort != null && sort.equals("newest")) {
-                userRequests = requestCollection.find(query)
-                        .sort(new BasicDBObject("postDate", -1))
-                        .skip(offset)
-                        .limit(limit);
-            } else {
-                BasicDBObject scoreProjection = new BasicDBObject();
-                scoreProjection.append("$meta", "textScore");
-                BasicDBObject projectionParent = new BasicDBObject();
-                projectionParent.put("score", scoreProjection);
-                userRequests = requestCollection.find(query, projectionParent)
-                        .sort(new BasicDBObject("score", scoreProjection))
-                        .skip(offset)
-                        .limit(limit);
+    /**
+     * Gives requests posted before they had a location their poster's home, so they show up when sorting by distance.
+     *
+     * @return how many requests were updated
+     */
+    public int backfillLocations() {
+        BasicDBObject noLocation = new BasicDBObject("location", null);
+        int updated = 0;
+        for (Object userId : requestCollection.distinct("user._id", noLocation)) {
+            User user = userCollection.findOneById(userId.toString(), DBProjection.include("homeLocation"));
+            if (user == null || user.getHomeLocation() == null) {
+                continue;
             }
-            requests = userRequests.toArray();
-            userRequests.close();
+            BasicDBObject query = new BasicDBObject("user._id", userId).append("location", null);
+            BasicDBObject location = new BasicDBObject("type", "Point")
+                    .append("coordinates", Arrays.asList(user.getHomeLocation().getCoordinates()));
+            BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("location", location))
+                    .append("$max", new BasicDBObject("version", UxtaUtils.nextVersion(null)));
+            updated += requestCollection.updateMulti(query, update).getN();
         }
-        //update the user's info
-        requests.stream().forEach(r -> {
-            User requester = userCollection.findOneById(r.getUser().getId());
-            r.setUser(requester);
-            requestCollection.save(r);
-        });
-        return requests;
+        LOGGER.info("Set the location of [" + updated + "] requests from their poster's home");
+        return updated;
     }
 
-    private void setNotExpiredQuery(BasicDBObject query) {
-        BasicDBList or = new BasicDBList();
-        or.add(getNotExpiredQuery());
-        or.add(getNoExpireDateQuery());
-        query.put("$or", or);
+    private boolean isDistanceSort(String sort) {
+        return sort != null && sort.equals("distance");
     }
 
-    private BasicDBObject getNotExpiredQuery() {
-        // expire date is after current date
-        BasicDBObject notExpiredQuery = new BasicDBObject();
-        notExpiredQuery.append("$gt", new Date());
-        BasicDBObject query = new BasicDBObject();
-        query.append("expireDate", notExpiredQuery);
-        return query;
+    /**
+     * Ranks the requests matching the query by distance with $geoNear, which uses the 2dsphere index on location to
+     * do the filtering, sorting and cutting off at the radius in one pass. Requests without a location are left out.
+     *
+     * @param query    the feed's filters, without $text
+     * @param principal
+     * @param near     where to measure from and how far to look, the principal's home and notificationRadius
+     *                 (if they have them) fill in what isn't given
+     * @param offset
+     * @param limit
+     * @return the page of requests, nearest first, with their distance set
+     */
+    private List<Request> findNearest(BasicDBObject query, User principal, SearchParams near, int offset, int limit) {
+        GeoJsonPoint from = principal.getHomeLocation();
+        if (near != null && near.getLatitude() != null && near.getLongitude() != null) {
+            from = new GeoJsonPoint(near.getLongitude(), near.getLatitude());
+        }
+        if (from == null) {
+            String msg = "Sorting by distance needs a latitude and longitude, or a home address on your profile";
+            LOGGER.error("[" + principal.getId() + " - " + principal.getName() + "] " + msg);
+            throw new BadRequestException(msg);
+        }
+        Double radius = near != null && near.getRadius() != null ? near.getRadius() : principal.getNotificationRadius();
+
+        BasicDBObject geoNear = new BasicDBObject();
+        geoNear.append("near", new BasicDBObject("type", "Point")
+                .append("coordinates", Arrays.asList(from.getCoordinates())));
+        geoNear.append("distanceField", "distance");
+        geoNear.append("spherical", true);
+        geoNear.append("query", query);
+        // $geoNear stops at 100 documents unless told otherwise
+        geoNear.append("limit", offset + limit);
+        if (radius != null && radius > 0) {
+            geoNear.append("maxDistance", radius * UxtaUtils.METERS_PER_MILE);
+        }
+        List<DBObject> pipeline = new ArrayList<>();
+        pipeline.add(new BasicDBObject("$geoNear", geoNear));
+        pipeline.add(new BasicDBObject("$skip", offset));
+        pipeline.add(new BasicDBObject("$limit", limit));
+        AggregationOptions options = AggregationOptions.builder()
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+        List<Request> requests = new ArrayList<>();
+        try (Cursor cursor = requestCollection.getDbCollection().aggregate(pipeline, options)) {
+            while (cursor.hasNext()) {
+                requests.add(requestCollection.convertFromDbObject(cursor.next()));
+            }
+        }
+        return requests;
     }
 
-    private BasicDBObject getNoExpireDateQuery() {
-        // expire date is not set
-        BasicDBObject notSetQuery = new BasicDBObject();
-        notSetQuery.append("$exists", false);
-        BasicDBObject noExpireDateQuery = new BasicDBObject();
-        noExpireDateQuery.append("expireDate", notSetQuery);
-        return noExpireDateQuery;
+    /**
+     * Swaps the embedded user snapshot on each request for the current user document, using a single $in query for
+     * the whole page. This is only for the response, the stored snapshot is kept up to date when the user's profile
+     * changes so we never write during a read.
+     *
+     * @param requests
+     */
+    private void refreshRequestUsers(List<Request> requests) {
+        List<ObjectId> userIds = requests.stream()
+                .filter(r -> r.getUser() != null && r.getUser().getId() != null)
+                .map(r -> new ObjectId(r.getUser().getId()))
+                .distinct()
+                .collect(Collectors.toList());
+        if (userIds.isEmpty()) {
+            return;
+        }
+        BasicDBObject inQuery = new BasicDBObject("$in", userIds);
+        DBCursor<User> userCursor = userCollection.find(new BasicDBObject("_id", inQuery));
+        Map<String, User> usersById = userCursor.toArray().stream()
+                .collect(Collectors.toMap(User::getId, u -> u));
+        userCursor.close();
+        requests.forEach(r -> {
+            User requester = r.getUser() != null ? usersById.get(r.getUser().getId()) : null;
+            if (requester != null) {
+                r.setUser(requester);
+            }
+        });
     }
 
     private BasicDBObject setAppropriateQuery(BasicDBObject query) {
@@ -345,44 +395,23 @@ public class RequestService {
         return query;
     }
 
-    private void addLast15MinsQuery(BasicDBObject query) {
-        Calendar date = Calendar.getInstance();
-        long t = date.getTimeInMillis();
-        Date last15 = new Date(t - (15 * ONE_MINUTE_IN_MILLIS));
-        BasicDBObject last15Query = new BasicDBObject();
-        last15Query.append("$gt", last15);
-        query.append("postDate", last15Query);
-    }
-
-    private void addNotMineQuery(BasicDBObject query, String userId) {
-        BasicDBObject notMineQuery = new BasicDBObject();
-        notMineQuery.append("$ne", userId);
-        query.put("user.userId", notMineQuery);
-    }
-
     public void sendNewRequestNotification(Request r) {
         try {
-            BasicDBList or = new BasicDBList();
-            DBObject findAdmins = new BasicDBObject("admin", true);
-            or.add(findAdmins);
-            DBObject findCommunityUsers = new BasicDBObject("communityId", r.getCommunityId());
-            DBObject notifsOn = new BasicDBObject("newRequestNotificationsEnabled", true);
-            BasicDBList andQuery = new BasicDBList();
-            andQuery.add(findCommunityUsers);
-            andQuery.add(notifsOn);
-            or.add(andQuery);
-            DBObject query = new BasicDBObject();
-            query.put("$or", or);
+            DBObject query = new BasicDBObject("communityId", r.getCommunityId());
+            query.put("newRequestNotificationsEnabled", true);
             DBCursor cursor = userCollection.find(query);
             List<User> users = cursor.toArray();
+            cursor.close();
+            users.removeIf(user -> adminRoster.isAdmin(user.getId()));
+            users.addAll(adminRoster.getAdmins());
             if (users != null && users.size() > 0) {
-                JSONObject notification = new JSONObject();
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", "New Post!");
                 String body = "User [" + r.getUser().getName() + "] added a [" + r.getType().toString() + "] post for a [" + r.getItemName() + "]!";
                 notification.put("message", body);
                 notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
                 for (User user : users) {
-                    FirebaseUtils.sendFcmMessage(user, null, notification, ccsServer);
+                    notificationOutbox.enqueue(user, notification);
                 }
             }
         } catch (Exception e) {
@@ -393,45 +422,34 @@ public class RequestService {
 
 
     public void sendAsyncPostNotifications(Request r) {
-        try {
-            BasicDBList or = new BasicDBList();
-            DBObject findAdmins = new BasicDBObject("admin", true);
-            or.add(findAdmins);
-
-            DBObject findCommunityUsers = new BasicDBObject("communityId", r.getCommunityId());
-            DBObject notifsOn = new BasicDBObject("newRequestNotificationsEnabled", true);
-            BasicDBList and = new BasicDBList();
-            and.add(findCommunityUsers);
-            and.add(notifsOn);
-            DBObject andQuery = new BasicDBObject();
-            andQuery.put("$and", and);
-            or.add(andQuery);
-
-            DBObject query = new BasicDBObject();
-            query.put("$or", or);
-            DBCursor cursor = userCollection.find(query);
-            final List<User> users = cursor.toArray();
-            if (users != null && users.size() > 0) {
-                LOGGER.info("Number of users to send to post notif for [" + r.getCommunityId() + "] : " + users.size());
-                CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
-                    for (User user : users) {
-                        //don't send notif to the person that just made the request
-                        if (!user.getId().equals(r.getUser().getId())) {
-                            JSONObject notification = new JSONObject();
-                            notification.put("title", "New Post!");
-                            String body = r.getUser().getFirstName() + " would like to " + r.getType().toString() + " a " + r.getItemName() + ". Can you help out?";
-                            notification.put("message", body);
-                            notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
-                            FirebaseUtils.sendFcmMessage(user, null, notification, ccsServer);
-                            LOGGER.info("Send new post notification to [" + user.getFirstName() + "]");
-                        }
-                    }
-                    return true;
-                });
-            }
-        } catch (Exception e) {
-            //d
+        DBObject query = new BasicDBObject("communityId", r.getCommunityId());
+        query.put("newRequestNotificationsEnabled", true);
+        // users who picked keywords only hear about posts that mention one, everyone else hears about every post
+        BasicDBList recipients = new BasicDBList();
+        recipients.add(new BasicDBObject("notificationKeywords", new BasicDBObject("$in",
+                Arrays.asList(null, new ArrayList<String>()))));
+        List<ObjectId> interested = keywordMatcher.match(r.getCommunityId(), r.getItemName(), r.getDescription())
+                .stream().map(ObjectId::new).collect(Collectors.toList());
+        if (!interested.isEmpty()) {
+            recipients.add(new BasicDBObject("_id", new BasicDBObject("$in", interested)));
         }
+        query.put("$or", recipients);
 
+        // every recipient gets the same message, so build it once
+        NotificationPayload notification = new NotificationPayload();
+        notification.put("title", "New Post!");
+        String body = r.getUser().getFirstName() + " would like to " + r.getType().toString() + " a " + r.getItemName() + ". Can you help out?";
+        notification.put("message", body);
+        notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
+        //don't send notif to the person that just made the request
+        String posterId = r.getUser().getId();
+        // admins get every post whatever community they're in, send theirs from the roster and skip them in the fan-out
+        for (User admin : adminRoster.getAdmins()) {
+            if (!admin.getId().equals(posterId)) {
+                notificationOutbox.enqueue(admin, notification);
+            }
+        }
+        notificationDispatcher.fanOut(() -> userCollection.find(query),
+                user -> user.getId().equals(posterId) || adminRoster.isAdmin(user.getId()), notification);
     }
 }
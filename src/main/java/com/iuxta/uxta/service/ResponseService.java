@@ -1,20 +1,21 @@
 package com.iuxta.uxta.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
 import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.dto.*;
+import com.iuxta.uxta.event.RequestChangedEvent;
+import com.iuxta.uxta.event.ResponseCreatedEvent;
 import com.iuxta.uxta.exception.*;
 import com.iuxta.uxta.exception.IllegalArgumentException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.*;
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import org.apache.commons.lang3.SerializationUtils;
 import org.bson.types.ObjectId;
-import org.json.JSONObject;
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
@@ -23,11 +24,8 @@ import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Created by kerrk on 9/3/16.
@@ -38,10 +36,13 @@ public class ResponseService {
 
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<Response, String> responseCollection;
-    private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<Transaction, String> transactionCollection;
     private JacksonDBCollection<ResponseFlag, String> responseFlagCollection;
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
+    private EventBus eventBus;
+    private AdminRoster adminRoster;
+    private OpenItemCounter openItemCounter;
 
     public ResponseService() {
 
@@ -49,16 +50,23 @@ public class ResponseService {
 
     public ResponseService(JacksonDBCollection<Request, String> requestCollection,
                            JacksonDBCollection<Response, String> responseCollection,
-                           JacksonDBCollection<User, String> userCollection,
+                           UserCache userCache,
                            JacksonDBCollection<Transaction, String> transactionCollection,
                            JacksonDBCollection<ResponseFlag, String> responseFlagCollection,
-                           CcsServer ccsServer) {
+                           NotificationOutbox notificationOutbox,
+                           EventBus eventBus,
+                           AdminRoster adminRoster,
+                           OpenItemCounter openItemCounter) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
-        this.userCollection = userCollection;
+        this.userCache = userCache;
         this.transactionCollection = transactionCollection;
         this.responseFlagCollection = responseFlagCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
+        this.eventBus = eventBus;
+        this.adminRoster = adminRoster;
+        this.openItemCounter = openItemCounter;
+        eventBus.register(this);
     }
 
     public Response transformResponseDto(ResponseDto dto, Request request, User responder) {
@@ -67,20 +75,35 @@ public class ResponseService {
             LOGGER.info(msg);
             throw new BadRequestException(msg);
         }
+        // expired but not swept yet, the ExpirySweeper closes it and its offers
         if (request.getExpireDate() != null && request.getExpireDate().before(new Date())) {
-            request.setStatus(Request.Status.CLOSED);
-            requestCollection.save(request);
             String msg = "Cannot create this offer because the request was recently closed.";
             LOGGER.info(msg);
             throw new BadRequestException(msg);
         }
         Response response = new Response();
         ensureValidOffferPrice(dto.offerPrice);
+        response.setId(new ObjectId().toString());
+        if (!openItemCounter.reserveOffer(responder, response.getId())) {
+            throw new NotAllowedException("You have exceeded the maximum number of open/pending offers");
+        }
+        try {
+            response = saveResponse(response, dto, request, responder);
+        } catch (RuntimeException e) {
+            openItemCounter.releaseOffer(responder, response.getId());
+            throw e;
+        }
+        // the insert has been acknowledged, so by the time the recipient opens the notification the offer is there
+        eventBus.post(new ResponseCreatedEvent(request, response, responder));
+        return response;
+    }
+
+    private Response saveResponse(Response response, ResponseDto dto, Request request, User responder) {
         if (request.getType() != null && request.getType().equals(Request.Type.loaning)) {
             Request requestDuplicate = SerializationUtils.clone(request);
             requestDuplicate.setDuplicate(true);
             requestDuplicate.setId(null);
-            WriteResult result = requestCollection.save(requestDuplicate);;
+            WriteResult result = UxtaUtils.saveVersioned(requestCollection, requestDuplicate);;
             requestDuplicate = (Request) result.getSavedObject();
             response.setIsOfferToBuyOrRent(true);
             response.setRequestId(requestDuplicate.getId());
@@ -110,15 +133,23 @@ public class ResponseService {
             message.setContent(dto.messages.get(0).getContent());
             response.addMessage(message);
         }
-        WriteResult result = responseCollection.insert(response);
-        response = (Response) result.getSavedObject();
-        try {
-            Thread.sleep(500L);
-        } catch (InterruptedException e) {
-            //do nothing
-        }
+        WriteResult result = UxtaUtils.insertVersioned(responseCollection, response);
+        return (Response) result.getSavedObject();
+    }
+
+    /**
+     * Sends the "New Offer" notification for an offer that was just saved. Runs on the event bus thread, not the
+     * request thread.
+     *
+     * @param event
+     */
+    @Subscribe
+    public void onResponseCreated(ResponseCreatedEvent event) {
+        Request request = event.getRequest();
+        Response response = event.getResponse();
+        User responder = event.getResponder();
         String title = "New Offer";
-        BigDecimal price = BigDecimal.valueOf(dto.offerPrice);
+        BigDecimal price = BigDecimal.valueOf(response.getOfferPrice());
         price = price.setScale(UxtaUtils.USD.getDefaultFractionDigits(), UxtaUtils.DEFAULT_ROUNDING);
         String body = "";
         if (!request.isInventoryListing()) {
@@ -126,27 +157,22 @@ public class ResponseService {
         } else {
             body = responder.getFirstName() + " requested to " +  (request.getType().equals(Request.Type.loaning) ? "borrow " : "buy ") + "your " + request.getItemName() + " for $" + price;
         }
-        if (!dto.priceType.toLowerCase().equals(Response.PriceType.FLAT.toString().toLowerCase())) {
-            body += (dto.priceType.toLowerCase().equals(Response.PriceType.PER_DAY.toString().toLowerCase())) ?
-                    " per day" : " per hour";
+        if (response.getPriceType() != Response.PriceType.FLAT) {
+            body += response.getPriceType() == Response.PriceType.PER_DAY ? " per day" : " per hour";
         }
-        JSONObject notification = new JSONObject();
+        NotificationPayload notification = new NotificationPayload();
         notification.put("title", title);
         notification.put("message", body);
         notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
+            notification.putResponse(new ResponseDto(response));
+            notification.putRequest(new RequestDto(request));
         } catch (JsonProcessingException e) {
             String msg = "Could not convert object to json string, got error: " + e.getMessage();
             LOGGER.error(msg);
         }
-        User recipient = userCollection.findOneById(request.getUser().getId());
-        FirebaseUtils.sendFcmMessage(recipient, dto, notification, ccsServer);
-        return response;
+        User recipient = userCache.findById(request.getUser().getId());
+        notificationOutbox.enqueue(recipient, notification);
     }
 
     private boolean hasMessage(ResponseDto dto) {
@@ -212,12 +238,8 @@ public class ResponseService {
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
+        // expired but not swept yet, the ExpirySweeper closes it and its offers
         if (request.getExpireDate() != null && request.getExpireDate().before(new Date())) {
-            request.setStatus(Request.Status.CLOSED);
-            requestCollection.save(request);
-            response.setBuyerStatus(Response.BuyerStatus.CLOSED);
-            response.setResponseStatus(Response.Status.CLOSED);
-            responseCollection.save(response);
             String msg = "";
             if (request.getType().equals(Request.Type.loaning) || request.getType().equals(Request.Type.selling)) {
                 msg = "Cannot update this response because the offer was recently closed.";
@@ -267,7 +289,11 @@ public class ResponseService {
                 updateSellerStatus(response, dto, request);
             }
         }
-        responseCollection.save(response);
+        UxtaUtils.saveVersioned(responseCollection, response);
+        if (response.getResponseStatus() != Response.Status.PENDING) {
+            openItemCounter.offerClosed(response);
+        }
+        eventBus.post(new RequestChangedEvent(request.getId()));
         return response;
     }
 
@@ -352,18 +378,15 @@ public class ResponseService {
 
     public void sendUpdateToRequester(Request request, Response response, String msg) {
         try {
-            JSONObject notification = new JSONObject();
-            User seller = userCollection.findOneById(response.getResponderId());
+            NotificationPayload notification = new NotificationPayload();
+            User seller = userCache.findById(response.getResponderId());
             notification.put("title", msg != null ? msg : seller.getFirstName() + " updated their offer");
             notification.put("message", msg != null ? msg : seller.getFirstName() + " updated their offer for a " + request.getItemName());
             notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            User recipient = userCollection.findOneById(request.getUser().getId());
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            notification.putResponse(new ResponseDto(response));
+            notification.putRequest(new RequestDto(request));
+            User recipient = userCache.findById(request.getUser().getId());
+            notificationOutbox.enqueue(recipient, notification);
         } catch (JsonProcessingException e) {
             String err = "Could not send update to responder for response [" + response.getId() + "], " +
                     "got error converting object to json string: " + e.getMessage();
@@ -374,17 +397,14 @@ public class ResponseService {
 
     public void sendUpdateToResponder(Request request, Response response, String msg) {
         try {
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", msg != null ? msg : request.getUser().getFirstName() + " made updates to the offer");
             notification.put("message", msg != null ? msg : request.getUser().getFirstName() + " edited your offer for a " + request.getItemName());
             notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            User recipient = userCollection.findOneById(response.getResponderId());
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            notification.putResponse(new ResponseDto(response));
+            notification.putRequest(new RequestDto(request));
+            User recipient = userCache.findById(response.getResponderId());
+            notificationOutbox.enqueue(recipient, notification);
         } catch (JsonProcessingException e) {
             String err = "Could not send update to responder for response [" + response.getId() + "], " +
                     "got error converting object to json string: " + e.getMessage();
@@ -412,18 +432,16 @@ public class ResponseService {
                 try {
                     r.setBuyerStatus(Response.BuyerStatus.CLOSED);
                     r.setResponseStatus(Response.Status.CLOSED);
-                    responseCollection.save(r);
-                    JSONObject notification = new JSONObject();
+                    UxtaUtils.saveVersioned(responseCollection, r);
+                    openItemCounter.offerClosed(r);
+                    NotificationPayload notification = new NotificationPayload();
                     notification.put("title", title);
                     notification.put("message", body);
                     notification.put("type", FirebaseUtils.NotificationTypes.offer_closed.name());
-                    ObjectMapper mapper = new ObjectMapper();
-                    String responseJson = mapper.writeValueAsString(new ResponseDto(r));
-                    notification.put("response", responseJson);
-                    String requestJson = mapper.writeValueAsString(new RequestDto(request));
-                    notification.put("request", requestJson);
-                    User recipient = userCollection.findOneById(r.getResponderId());
-                    FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+                    notification.putResponse(new ResponseDto(r));
+                    notification.putRequest(new RequestDto(request));
+                    User recipient = userCache.findById(r.getResponderId());
+                    notificationOutbox.enqueue(recipient, notification);
                 } catch (JsonProcessingException e) {
                     String msg = "Could not convert object to json string, got error: " + e.getMessage();
                     LOGGER.error(msg);
@@ -431,8 +449,8 @@ public class ResponseService {
             }
         });
         //let responder know the response has been accepted
-        JSONObject notification = new JSONObject();
-        User recipient = userCollection.findOneById(response.getResponderId());
+        NotificationPayload notification = new NotificationPayload();
+        User recipient = userCache.findById(response.getResponderId());
         String priceType = response.getPriceType().equals(Response.PriceType.FLAT) ? "" :
                 response.getPriceType().equals(Response.PriceType.PER_DAY) ? " per day " : " per hour ";
 
@@ -443,21 +461,18 @@ public class ResponseService {
             notification.put("message", "Your offer for a " + request.getItemName() + " for $" + price +
                     priceType + " was accepted!");
             notification.put("type", FirebaseUtils.NotificationTypes.offer_accepted.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            notification.putResponse(new ResponseDto(response));
+            notification.putRequest(new RequestDto(request));
+            notificationOutbox.enqueue(recipient, notification);
 
             //let buyer know they accepted the offer and other responses have been closed
-            notification = new JSONObject();
+            notification = new NotificationPayload();
             notification.put("title", "You accepted " + recipient.getFirstName() + "'s offer!");
             notification.put("message", "You accepted " + recipient.getFirstName() + "'s offer for $" + price +
                     priceType + ". Any other offers have been closed.");
-            recipient = userCollection.findOneById(request.getUser().getId());
-            requestCollection.save(request);
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            recipient = userCache.findById(request.getUser().getId());
+            UxtaUtils.saveVersioned(requestCollection, request);
+            notificationOutbox.enqueue(recipient, notification);
         } catch (JsonProcessingException e) {
             String msg = "Could not convert object to json string, got error: " + e.getMessage();
             LOGGER.error(msg);
@@ -490,323 +505,7 @@ public class ResponseService {
         transaction.setResponseId(responseId);
         transaction.setSellerId(sellerId);
         transaction.setBuyerId(buyerId);
-        transactionCollection.insert(transaction);
-    }
-
-    public List<HistoryDto> getHistory(User user, List<String> types, List<String> status) {
-        DBObject searchByUser = new BasicDBObject("user._id", new ObjectId(user.getId()));
-        boolean getRequests = false;
-        boolean getOffers = false;
-        boolean getTransactions = false;
-        boolean getOpen = false;
-        boolean getClosed = false;
-        if (types == null || types.size() == 0) {
-            getRequests = true;
-            getOffers = true;
-            getTransactions = true;
-        } else {
-            for (String type:types) {
-                if (type.toLowerCase().equals("requests")) {
-                    getRequests = true;
-                } else if (type.toLowerCase().equals("offers")) {
-                    getOffers = true;
-                } else if (type.toLowerCase().equals("transactions")) {
-                    getTransactions = true;
-                }
-            }
-        }
-        if (status == null || status.size() == 0) {
-            getOpen = true;
-            getClosed = true;
-        } else {
-            for (String s:status) {
-                if (s.toLowerCase().equals("open")) {
-                    getOpen = true;
-                } else if (s.toLowerCase().equals("closed")) {
-                    getClosed = true;
-                }
-            }
-        }
-        final boolean addRequests = getRequests;
-        final boolean addOffers = getOffers;
-        final boolean addTransactions = getTransactions;
-        final boolean addOpen = getOpen;
-        final boolean addClosed = getClosed;
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        if (getRequests || getTransactions) {
-            //requests includes responses to sale items
-            List<HistoryDto> responseDtos = getResponsesToListings(user, getRequests, getTransactions, addOpen, addClosed);
-            historyDtos.addAll(responseDtos);
-            BasicDBObject query = new BasicDBObject();
-            query.put("user._id", new ObjectId(user.getId()));
-            BasicDBObject inQuery = new BasicDBObject();
-            List<String> requestTypes = Stream.of("buying", "renting").collect(Collectors.toList());
-            inQuery.put("$in", requestTypes);
-            query.put("type", inQuery);
-            DBCursor userRequests = requestCollection.find(query).sort(new BasicDBObject("postDate", -1));
-            List<Request> requests = userRequests.toArray();
-            userRequests.close();
-            historyDtos.addAll(getRequestOffers(user, getRequests, getRequests, addOpen, addClosed, requests));
-        }
-
-        if (getOffers || getTransactions) {
-            List<HistoryDto> userOffers = getMyOfferHistory(user, getOffers, getTransactions, getOpen, getClosed);
-            historyDtos.addAll(userOffers);
-        }
-        Collections.sort(historyDtos, new HistoryComparator(user.getId()));
-        if (historyDtos.size() > UxtaUtils.DEFAULT_LIMIT) {
-            return historyDtos.subList(0, UxtaUtils.DEFAULT_LIMIT);
-        } else {
-            return historyDtos;
-        }
-    }
-
-    public List<HistoryDto> getResponsesToListings(User user, final boolean getRequests, final boolean getTransactions,
-                                                   final boolean getOpen, final boolean getClosed) {
-        BasicDBObject query = new BasicDBObject();
-        query.put("responderId", user.getId());
-        query.put("isOfferToBuyOrRent", true);
-        DBCursor responses  = responseCollection.find(query);
-        List<Response> responseRequests = responses.toArray();
-        responses.close();
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        responseRequests.forEach(r -> {
-            HistoryDto historyDto = getResponseRequest(r, user, getRequests, getTransactions, getOpen, getClosed);
-            if (historyDto != null) {
-                historyDtos.add(historyDto);
-            }
-        });
-        return historyDtos;
-
-    }
-
-    public HistoryDto getResponseRequest(Response r, User user, final boolean getObject, final boolean getTransactions, final boolean getOpen, final boolean getClosed) {
-        Request request = requestCollection.findOneById(r.getRequestId());
-        if (request == null) {
-            return null;
-            //TODO: log an error here, but probably don't need to throw an exception...this really shouldn't happen
-        } else {
-            if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                for (String blocked : user.getBlockedUsers()) {
-                    if (blocked.equals(request.getUser().getId())) {
-                        return null; //don't show this offer because they have blocked this user
-                    }
-                }
-            }
-
-            if (!getClosed && r.getResponseStatus().equals(Response.Status.CLOSED)) {
-                return null;
-            } else if (!getOpen && r.getResponseStatus().equals(Response.Status.PENDING)) {
-                return null;
-            }
-            HistoryDto dto = new HistoryDto();
-            dto.request = new RequestDto(request);
-            dto.responses = Collections.singletonList(new ResponseDto(r));
-            BasicDBObject qry = new BasicDBObject("responseId", r.getId());
-            Transaction transaction = null;
-            //only look for a transaction if the response is accepted, otherwise the transaction may not belong to the response
-            if (r.getResponseStatus().equals(Response.Status.ACCEPTED)) {
-                transaction = transactionCollection.findOne(qry);
-            }
-            if (transaction != null) {
-                dto.transaction = new TransactionDto(transaction, true);
-                if (getTransactions) {
-                    if (!getOpen && (request.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                            request.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                        return null;
-                    } else if (!getClosed && (request.getStatus().equals(Request.Status.CLOSED) ||
-                            request.getStatus().equals(Request.Status.FULFILLED))) {
-                        return null;
-                    }
-                    return dto;
-                }
-            } else if (getObject) {
-                return dto;
-            }
-            return null;
-        }
-    }
-
-    public List<HistoryDto> getMyOfferHistory(User user, final boolean getOffers, final boolean getTransactions,
-                                              final boolean getOpen, final boolean getClosed) {
-        List<HistoryDto> historyDtos = new ArrayList<>();
-
-        //includes requests that are of type "selling" or "loaning"
-        BasicDBObject requestQuery = new BasicDBObject();
-        requestQuery.put("user._id", new ObjectId(user.getId()));
-        BasicDBObject inQuery = new BasicDBObject();
-        List<String> types = Stream.of("selling", "loaning").collect(Collectors.toList());
-        inQuery.put("$in", types);
-        requestQuery.put("type", inQuery);
-        DBCursor requests  = requestCollection.find(requestQuery);
-        List<Request> offerRequests = requests.toArray();
-        requests.close();
-        historyDtos.addAll(getRequestOffers(user, getOffers, getTransactions, getOpen, getClosed, offerRequests));
-
-        BasicDBObject query = new BasicDBObject("responderId", user.getId());
-        //is the response really a request to rent or buy something? if so, don't include it in "offers"
-        query.put("isOfferToBuyOrRent", false);
-
-        DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
-        List<Response> responses = requestResponses.toArray();
-        requestResponses.close();
-        // for each offer, get the corresponding request
-        responses.forEach(r -> {
-            HistoryDto historyDto = getResponseRequest(r, user, getOffers, getTransactions, getOpen, getClosed);
-            if (historyDto != null) {
-                historyDtos.add(historyDto);
-            }
-            /*Request request = requestCollection.findOneById(r.getRequestId());
-            if (request == null) {
-                //TODO: log an error here, but probably don't need to throw an exception...this really shouldn't happen
-            } else {
-                if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                    for (String blocked:user.getBlockedUsers()) {
-                        if (blocked.equals(request.getUser().getId())) {
-                            return; //don't show this offer because they have blocked this user
-                        }
-                    }
-                }
-
-                if (!getClosed && r.getResponseStatus().equals(Response.Status.CLOSED)) {
-                    return;
-                } else if (!getOpen && r.getResponseStatus().equals(Response.Status.PENDING)) {
-                    return;
-                }
-                HistoryDto dto = new HistoryDto();
-                dto.request = new RequestDto(request);
-                dto.responses = Collections.singletonList(new ResponseDto(r));
-                BasicDBObject qry = new BasicDBObject("responseId", r.getId());
-                Transaction transaction = null;
-                //only look for a transaction if the response is accepted, otherwise the transaction may not belong to the response
-                if (r.getResponseStatus().equals(Response.Status.ACCEPTED)) {
-                    transaction = transactionCollection.findOne(qry);
-                }
-                if (transaction != null) {
-                    dto.transaction = new TransactionDto(transaction, true);
-                    if (getTransactions) {
-                        if (!getOpen && (request.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                                request.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                            return;
-                        } else if (!getClosed && (request.getStatus().equals(Request.Status.CLOSED) ||
-                                request.getStatus().equals(Request.Status.FULFILLED))) {
-                            return;
-                        }
-                        historyDtos.add(dto);
-                    }
-                } else if (getOffers) {
-                    historyDtos.add(dto);
-                }
-
-            }*/
-        });
-        return historyDtos;
-    }
-
-    public List<HistoryDto> getRequestOffers(User user, final boolean getObjects, final boolean getTransactions,
-                                             final boolean getOpen, final boolean getClosed, List<Request> requests) {
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        requests.forEach(r -> {
-            BasicDBObject query = new BasicDBObject("requestId", r.getId());
-            //don't return the inappropriate offers
-            BasicDBObject notTrueQuery = new BasicDBObject();
-            notTrueQuery.append("$ne", true);
-            query.put("inappropriate", notTrueQuery);
-            if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                BasicDBObject blockedUserIdsQuery = new BasicDBObject();
-                blockedUserIdsQuery.put("$nin", user.getBlockedUsers());
-                query.put("responderId", blockedUserIdsQuery);
-            }
-            DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
-            List<Response> responses = requestResponses.toArray();
-            requestResponses.close();
-            HistoryDto dto = new HistoryDto();
-            dto.request = new RequestDto(r);
-            if (!getOpen && (r.getStatus().equals(Request.Status.OPEN) ||
-                    r.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                    r.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                return;
-            } else if (!getClosed && (r.getStatus().equals(Request.Status.CLOSED) ||
-                    r.getStatus().equals(Request.Status.FULFILLED))) {
-                return;
-            }
-            List<ResponseDto> dtos = ResponseDto.transform(responses);
-            dtos.forEach(d -> {
-                User seller = userCollection.findOneById(d.responderId);
-                UserDto userDto = new UserDto();
-                if (seller == null) {
-                    for (Response response : responses) {
-                        if (response.getResponderId().equals(d.responderId)) {
-                            response.setResponseStatus(Response.Status.CLOSED);
-                            responseCollection.save(response);
-                            d.sellerStatus = r.getStatus().toString();
-                        }
-                    }
-                    return;
-                }
-                userDto = new UserDto(seller);
-                if (d.messagesEnabled != null && d.messagesEnabled) {
-                    userDto.phone = seller.getPhone();
-                }
-                d.responder = userDto;
-                d.seller = userDto;
-            });
-            query.put("canceled", false);
-            Transaction transaction = transactionCollection.findOne(query);
-            dto.responses = dtos;
-            if (transaction != null) {
-                dto.transaction = new TransactionDto(transaction, false);
-                if (getTransactions) {
-                    historyDtos.add(dto);
-                }
-            } else {
-                if (getObjects) {
-                    historyDtos.add(dto);
-                }
-            }
-        });
-        return historyDtos;
-    }
-
-    /**
-     * Returns true if the user can make a new response/offer. User CANNOT make a new response/offer if they have 5 or more
-     * open/pending offers
-     * @param user
-     * @return
-     */
-    public boolean canCreateResponse(User user) {
-        BasicDBObject query = new BasicDBObject();
-        query.put("responderId", user.getUserId());
-        query.put("responseStatus", Response.Status.PENDING);
-        DBCursor userResponses  = responseCollection.find(query);
-        List<Response> userRs = userResponses.toArray();
-        int openTransactions = getOpenTransactions(user);
-        String msg = "User [" + user.getFirstName() + ":" + user.getId() + "] has [" +
-                userResponses.size() + "] pending offers and [" + openTransactions + "] open transactions";
-        int totalResponseAndTransactions = userRs.size() + openTransactions;
-        if (userRs.size() < UxtaUtils.MAX_OPEN_RESPONSES && (totalResponseAndTransactions < 20)) {
-            LOGGER.info(msg);
-            return true;
-        } else {
-            LOGGER.info("Cannot make offer: " + msg);
-            return false;
-        }
-    }
-
-    public int getOpenTransactions(User user) {
-        BasicDBObject query = new BasicDBObject();
-        BasicDBList or = new BasicDBList();
-        BasicDBObject buyerQuery = new BasicDBObject("buyerId", user.getId());
-        or.add(buyerQuery);
-        BasicDBObject sellerQuery = new BasicDBObject("responderId", user.getId());
-        or.add(sellerQuery);
-        query.put("$or", or);
-        BasicDBObject notSetQuery = new BasicDBObject("$exists", false);
-        query.put("finalPrice", notSetQuery);
-        query.put("canceled", false);
-        DBCursor transactions  = transactionCollection.find(query);
-        List<Request> ts = transactions.toArray();
-        return ts != null ? ts.size() : 0;
+        UxtaUtils.insertVersioned(transactionCollection, transaction);
     }
 
     public void alertRespondersOfClosedRequest(Request request) {
@@ -823,23 +522,22 @@ public class ResponseService {
             try {
                 r.setBuyerStatus(Response.BuyerStatus.CLOSED);
                 r.setResponseStatus(Response.Status.CLOSED);
-                responseCollection.save(r);
-                JSONObject notification = new JSONObject();
+                UxtaUtils.saveVersioned(responseCollection, r);
+                openItemCounter.offerClosed(r);
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", title);
                 notification.put("message", body);
                 notification.put("type", FirebaseUtils.NotificationTypes.offer_closed.name());
-                ObjectMapper mapper = new ObjectMapper();
-                String responseJson = mapper.writeValueAsString(new ResponseDto(r));
-                notification.put("response", responseJson);
-                String requestJson = mapper.writeValueAsString(new RequestDto(request));
-                notification.put("request", requestJson);
-                User recipient = userCollection.findOneById(r.getResponderId());
-                FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+                notification.putResponse(new ResponseDto(r));
+                notification.putRequest(new RequestDto(request));
+                User recipient = userCache.findById(r.getResponderId());
+                notificationOutbox.enqueue(recipient, notification);
             } catch (JsonProcessingException e) {
                 String msg = "Could not convert object to json string, got error: " + e.getMessage();
                 LOGGER.error(msg);
             }
         });
+        eventBus.post(new RequestChangedEvent(request.getId()));
     }
 
     public ResponseFlag flagResponse(User user, ResponseFlagDto dto, Response response) {
@@ -870,18 +568,15 @@ public class ResponseService {
     }
 
     private void sendAdminFlagNotification(Response response) {
-        DBObject findAdmins = new BasicDBObject("admin", true);
-        DBCursor cursor = userCollection.find(findAdmins);
-        List<User> admins = cursor.toArray();
-        cursor.close();
+        List<User> admins = adminRoster.getAdmins();
         if (admins != null && admins.size() > 0) {
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "Response has been flagged!");
             String body = "Response [" + response.getId() + " - " + response.getDescription() + "] has been flagged! Review ASAP!";
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                notificationOutbox.enqueue(admin, notification);
             }
         }
     }
@@ -909,7 +604,11 @@ public class ResponseService {
             for (Response response:responses) {
                 response.setSellerStatus(Response.SellerStatus.WITHDRAWN);
                 response.setResponseStatus(Response.Status.CLOSED);
-                responseCollection.save(response);
+                UxtaUtils.saveVersioned(responseCollection, response);
+                openItemCounter.offerClosed(response);
+            }
+            if (!responses.isEmpty()) {
+                eventBus.post(new RequestChangedEvent(request.getId()));
             }
         }
 
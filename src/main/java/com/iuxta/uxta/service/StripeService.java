@@ -1,6 +1,7 @@
 package com.iuxta.uxta.service;
 
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.model.User;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
@@ -16,7 +17,7 @@ public class StripeService {
 
     private String stripeSecretKey;
     private String stripePublishableKey;
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
     private static final Logger LOGGER = LoggerFactory.getLogger(StripeService.class);
     private JacksonDBCollection<User, String> userCollection;
     private static final Currency USD = Currency.getInstance("USD");
@@ -25,11 +26,11 @@ public class StripeService {
 
 
     public StripeService(String stripeSecretKey, String stripePublishableKey,
-                         JacksonDBCollection<User, String> userCollection, CcsServer ccsServer) {
+                         JacksonDBCollection<User, String> userCollection, NotificationOutbox notificationOutbox) {
         this.stripeSecretKey = stripeSecretKey;
         this.stripePublishableKey = stripePublishableKey;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
     }
 
 //    private RequestOptions getRequestOptions() {
@@ -371,7 +372,7 @@ public class StripeService {
                 }
                 user.setMerchantStatus(notification.getMerchantAccount().getStatus().toString());
                 if (notification.getKind() == WebhookNotification.Kind.SUB_MERCHANT_ACCOUNT_DECLINED) {
-                    JSONObject n = new JSONObject();
+                    NotificationPayload n = new NotificationPayload();
                     n.put("title", "Merchant Account Declined");
                     String errorMessage = "";
                     for (ValidationError e : notification.getErrors().getAllValidationErrors()) {
@@ -382,14 +383,14 @@ public class StripeService {
                     n.put("message", errorMessage);
                     n.put("type", "merchant_account_status");
                     user.setMerchantStatusMessage(errorMessage);
-                    FirebaseUtils.sendFcmMessage(user, null, n, ccsServer);
+                    notificationOutbox.enqueue(user, n);
                 } else {
-                    JSONObject n = new JSONObject();
+                    NotificationPayload n = new NotificationPayload();
                     n.put("title", "Merchant Account Approved");
                     n.put("message", "You can now create offers and earn money through Nearby!");
                     n.put("type", "merchant_account_status");
                     User recipient = userCollection.findOneById(user.getId());
-                    FirebaseUtils.sendFcmMessage(recipient, null, n, ccsServer);
+                    notificationOutbox.enqueue(recipient, n);
                 }
                 userCollection.save(user);
             }
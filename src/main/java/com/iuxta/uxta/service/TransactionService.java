@@ -1,17 +1,19 @@
 package com.iuxta.uxta.service;
 
+import com.google.common.eventbus.EventBus;
 import com.iuxta.uxta.UxtaUtils;
 import com.iuxta.uxta.dto.TransactionDto;
+import com.iuxta.uxta.event.RequestChangedEvent;
 import com.iuxta.uxta.exception.BadRequestException;
 import com.iuxta.uxta.exception.CredentialExpiredException;
 import com.iuxta.uxta.exception.UnauthorizedException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.Request;
 import com.iuxta.uxta.model.Response;
 import com.iuxta.uxta.model.Transaction;
 import com.iuxta.uxta.model.User;
-import org.json.JSONObject;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,20 +29,23 @@ public class TransactionService {
 
     private JacksonDBCollection<Transaction, String> transactionCollection;
 
-    private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
 
     private JacksonDBCollection<Request, String> requestCollection;
 
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
+
+    private EventBus eventBus;
 
 
     public TransactionService(JacksonDBCollection<Transaction, String> transactionCollection,
-                              JacksonDBCollection<User, String> userCollection, CcsServer ccsServer,
-                              JacksonDBCollection<Request, String> requestCollection) {
+                              UserCache userCache, NotificationOutbox notificationOutbox,
+                              JacksonDBCollection<Request, String> requestCollection, EventBus eventBus) {
         this.transactionCollection = transactionCollection;
-        this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.userCache = userCache;
+        this.notificationOutbox = notificationOutbox;
         this.requestCollection = requestCollection;
+        this.eventBus = eventBus;
     }
 
     public String normalizeCode(String code) {
@@ -54,21 +59,27 @@ public class TransactionService {
                     "when the return has already occurred");
             throw new BadRequestException("Return has already occurred!");
         }
+        // never generated, or cleared by the ExpirySweeper
+        if (transaction.getReturnCode() == null || transaction.getReturnCodeExpireDate() == null) {
+            LOGGER.error("Transaction [" + transaction.getId() + "] has no return code");
+            throw new CredentialExpiredException("This return code has expired. Ask the buyer to generate a new one.");
+        }
         if (normalizeCode(transaction.getReturnCode()).equals(normalizeCode(code))) {
             Date currentDate = new Date();
             if (transaction.getReturnCodeExpireDate().after(currentDate)) {
                 transaction.setReturned(true);
                 transaction.setReturnTime(currentDate);
                 transaction.setReturned(true);
-                User seller = userCollection.findOneById(response.getResponderId());
+                User seller = userCache.findById(response.getResponderId());
                 calculatePrice(transaction, response, request);
-                JSONObject notification = new JSONObject();
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", "Exchange Confirmed");
                 notification.put("message", "exchange confirmed!");
                 notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
-                User buyer = userCollection.findOneById(request.getUser().getId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+                User buyer = userCache.findById(request.getUser().getId());
+                notificationOutbox.enqueue(buyer, notification);
+                notificationOutbox.enqueue(seller, notification);
+                eventBus.post(new RequestChangedEvent(request.getId()));
             } else {
                 LOGGER.error("Transaction [" + transaction.getId() + "]'s return code has expired");
                 throw new CredentialExpiredException("This return code has expired. Ask the buyer to generate a new one.");
@@ -85,23 +96,29 @@ public class TransactionService {
                     "when the exchange has already occurred");
             throw new BadRequestException("The exchange already occurred!");
         }
+        // never generated, or cleared by the ExpirySweeper
+        if (transaction.getExchangeCode() == null || transaction.getExchangeCodeExpireDate() == null) {
+            LOGGER.error("Transaction [" + transaction.getId() + "] has no exchange code");
+            throw new CredentialExpiredException("This exchange code has expired. Ask the seller to generate a new one.");
+        }
         if (normalizeCode(transaction.getExchangeCode()).equals(normalizeCode(code))) {
             if (transaction.getExchangeCodeExpireDate().after(new Date())) {
-                User seller = userCollection.findOneById(response.getResponderId());
+                User seller = userCache.findById(response.getResponderId());
                 if (!request.isRental()) {
                     calculatePrice(transaction, response, request);
                 }
                 transaction.setExchanged(true);
                 transaction.setExchangeTime(new Date());
                 transaction.setExchanged(true);
-                transactionCollection.save(transaction);
-                JSONObject notification = new JSONObject();
+                UxtaUtils.saveVersioned(transactionCollection, transaction);
+                NotificationPayload notification = new NotificationPayload();
                 notification.put("title", "Exchange Confirmed");
                 notification.put("message", "exchange confirmed!");
                 notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
-                User buyer = userCollection.findOneById(request.getUser().getId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
+                notificationOutbox.enqueue(seller, notification);
+                User buyer = userCache.findById(request.getUser().getId());
+                notificationOutbox.enqueue(buyer, notification);
+                eventBus.post(new RequestChangedEvent(request.getId()));
             } else {
                 LOGGER.error("Transaction [" + transaction.getId() + "]'s code has expired");
                 throw new CredentialExpiredException("This exchange code has expired. Ask the seller to generate a new one.");
@@ -119,10 +136,9 @@ public class TransactionService {
                 transaction.setFinalPrice(response.getOfferPrice());
                 transaction.setSellerAccepted(true);
                 request.setStatus(Request.Status.FULFILLED);
-                transactionCollection.save(transaction);
-                transactionCollection.save(transaction);
+                UxtaUtils.saveVersioned(transactionCollection, transaction);
                 request.setStatus(Request.Status.FULFILLED);
-                requestCollection.save(request);
+                UxtaUtils.saveVersioned(requestCollection, request);
             }
         } else {
             long secs = (new Date().getTime() - transaction.getExchangeTime().getTime()) / 1000;
@@ -131,7 +147,7 @@ public class TransactionService {
                     response.getOfferPrice() * hours : response.getOfferPrice() * (hours/24);
             transaction.setCalculatedPrice(price);
         }
-        transactionCollection.save(transaction);
+        UxtaUtils.saveVersioned(transactionCollection, transaction);
     }
 
     public String generateCode(Transaction transaction, Request request, Response response, String userId) {
@@ -177,34 +193,35 @@ public class TransactionService {
             override.sellerAccepted = true;
             transaction.setExchangeOverride(override);
             //send a notification to the buyer (requester)
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "Exchange Override");
             String msg = user.getFirstName() + " submitted an exchange override. Please confirm the item was exchanged.";
             notification.put("message", msg);
             notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
             if (isNormalRequest) {
-                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+                notificationOutbox.enqueue(request.getUser(), notification);
             } else {
-                User buyer = userCollection.findOneById(response.getResponderId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
+                User buyer = userCache.findById(response.getResponderId());
+                notificationOutbox.enqueue(buyer, notification);
             }
         } else {
             override.buyerAccepted = true;
             transaction.setReturnOverride(override);
             //send a notification to the buyer (requester)
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "Return Override");
             String msg = user.getFirstName() + " submitted a return override. Please confirm the item was returned.";
             notification.put("message", msg);
             notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
             if (isNormalRequest) {
-                User seller = userCollection.findOneById(response.getResponderId());
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+                User seller = userCache.findById(response.getResponderId());
+                notificationOutbox.enqueue(seller, notification);
             } else {
-                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+                notificationOutbox.enqueue(request.getUser(), notification);
             }
         }
-        transactionCollection.save(transaction);
+        UxtaUtils.saveVersioned(transactionCollection, transaction);
+        eventBus.post(new RequestChangedEvent(request.getId()));
     }
 
     public void respondToExchangeOverride(Transaction transaction, TransactionDto dto, Response response,
@@ -245,8 +262,8 @@ public class TransactionService {
                 //TODO: should we send a notifcation to the seller that the user has verified or declined?
             }
         }
-        transactionCollection.save(transaction);
-
+        UxtaUtils.saveVersioned(transactionCollection, transaction);
+        eventBus.post(new RequestChangedEvent(request.getId()));
     }
 
     private void confirmExchangeDidNotOccur(Transaction transaction, Boolean isSeller) {
@@ -300,7 +317,8 @@ public class TransactionService {
             transaction.setReturnCode(code);
             transaction.setReturnCodeExpireDate(afterAddingMins);
         }
-        transactionCollection.save(transaction);
+        UxtaUtils.saveVersioned(transactionCollection, transaction);
+        eventBus.post(new RequestChangedEvent(transaction.getRequestId()));
         return code;
     }
 }
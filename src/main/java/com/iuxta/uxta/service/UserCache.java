@@ -0,0 +1,121 @@
+package com.iuxta.uxta.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.iuxta.uxta.model.User;
+import com.mongodb.BasicDBObject;
+import io.dropwizard.util.Duration;
+import org.apache.commons.lang3.SerializationUtils;
+import org.mongojack.JacksonDBCollection;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of users, by _id and by facebook/google userId. Every lookup hands back its own copy, so callers
+ * can change and save the user they get like they would one fresh from mongo. Anything that saves a user must call
+ * {@link #invalidate(User)} afterwards; changes made some other way (or on another server) show up once the ttl runs
+ * out.
+ */
+public class UserCache {
+
+    private final JacksonDBCollection<User, String> userCollection;
+
+    private final Cache<String, User> usersById;
+
+    private final Cache<String, String> idsByUserId;
+
+    public UserCache(JacksonDBCollection<User, String> userCollection, MetricRegistry metrics, long maxSize,
+                     Duration ttl) {
+        this.userCollection = userCollection;
+        this.usersById = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        this.idsByUserId = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+        metrics.register(MetricRegistry.name(UserCache.class, "hits"),
+                (Gauge<Long>) () -> usersById.stats().hitCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "misses"),
+                (Gauge<Long>) () -> usersById.stats().missCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "evictions"),
+                (Gauge<Long>) () -> usersById.stats().evictionCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "size"),
+                (Gauge<Long>) usersById::size);
+        metrics.register(MetricRegistry.name(UserCache.class, "hit-ratio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(usersById.stats().hitCount(), usersById.stats().requestCount());
+            }
+        });
+    }
+
+    /**
+     * @param id the user's _id
+     * @return a copy of the user, or null if there is no such user
+     */
+    public User findById(String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            return SerializationUtils.clone(usersById.get(id, () -> userCollection.findOneById(id)));
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            // no such user, nothing was cached
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * @param userId the user's facebook/google id
+     * @return a copy of the user, or null if there is no such user
+     */
+    public User findByUserId(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        try {
+            // the _id for a userId never changes, so only the user itself needs to expire
+            String id = idsByUserId.get(userId, () -> {
+                User user = userCollection.findOne(new BasicDBObject("userId", userId));
+                if (user == null) {
+                    return null;
+                }
+                usersById.put(user.getId(), user);
+                return user.getId();
+            });
+            return findById(id);
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Drops the cached copy of a user, call after saving them.
+     *
+     * @param user
+     */
+    public void invalidate(User user) {
+        if (user != null && user.getId() != null) {
+            usersById.invalidate(user.getId());
+        }
+    }
+
+    private static RuntimeException unwrap(Exception e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new RuntimeException(e.getCause());
+    }
+}
@@ -4,16 +4,13 @@ import com.iuxta.uxta.dto.UserDto;
 import com.iuxta.uxta.dto.UserFlagDto;
 import com.iuxta.uxta.exception.InternalServerException;
 import com.iuxta.uxta.exception.NotFoundException;
-import com.iuxta.uxta.firebase.CcsServer;
+import com.iuxta.uxta.firebase.NotificationOutbox;
+import com.iuxta.uxta.firebase.NotificationPayload;
 import com.iuxta.uxta.firebase.FirebaseUtils;
 import com.iuxta.uxta.model.GeoJsonPoint;
 import com.iuxta.uxta.model.User;
 import com.iuxta.uxta.model.UserFlag;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONObject;
-import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.slf4j.Logger;
@@ -44,15 +41,21 @@ public class UserService {
     private ResponseService responseService;
     private JacksonDBCollection<User, String> userCollection;
     private JacksonDBCollection<UserFlag, String> userFlagCollection;
-    private CcsServer ccsServer;
+    private NotificationOutbox notificationOutbox;
+    private AdminRoster adminRoster;
+    private UserCache userCache;
 
     public UserService(ResponseService responseService,
                        JacksonDBCollection<User, String> userCollection,
                        JacksonDBCollection<UserFlag, String> userFlagCollection,
-                       CcsServer ccsServer) {
+                       NotificationOutbox notificationOutbox,
+                       AdminRoster adminRoster,
+                       UserCache userCache) {
         this.userCollection = userCollection;
         this.userFlagCollection = userFlagCollection;
-        this.ccsServer = ccsServer;
+        this.notificationOutbox = notificationOutbox;
+        this.adminRoster = adminRoster;
+        this.userCache = userCache;
         this.responseService = responseService;
     }
 
@@ -148,7 +151,7 @@ public class UserService {
     }*/
 
     public UserFlag blockUser(User user, UserFlagDto dto, String flaggedUser) {
-        User blockedUser = userCollection.findOneById(flaggedUser);
+        User blockedUser = userCache.findById(flaggedUser);
         if (blockedUser == null) {
             String msg = "Unable to block user [" + flaggedUser + "] because user was not found.";
             LOGGER.error(msg);
@@ -179,20 +182,19 @@ public class UserService {
         blockedUsers.add(userToBlock);
         user.setBlockedUsers(blockedUsers);
         userCollection.save(user);
+        userCache.invalidate(user);
     }
 
     private void sendAdminFlagNotification(User user) {
-        DBObject findAdmins = new BasicDBObject("admin", true);
-        DBCursor cursor = userCollection.find(findAdmins);
-        List<User> admins = cursor.toArray();
+        List<User> admins = adminRoster.getAdmins();
         if (admins != null && admins.size() > 0) {
-            JSONObject notification = new JSONObject();
+            NotificationPayload notification = new NotificationPayload();
             notification.put("title", "User has been flagged!");
             String body = "User [" + user.getId() + " - " + user.getName() + "] has been flagged! Review ASAP!";
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                notificationOutbox.enqueue(admin, notification);
             }        }
     }
 }
@@ -0,0 +1,62 @@
+import com.iuxta.uxta.model.Community;
+import com.iuxta.uxta.service.CommunityIndex;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommunityIndexTest {
+
+    private final CommunityIndex.Index index = new CommunityIndex.Index(Arrays.asList(
+            community("1", "Georgetown University", "Washington, DC", "Hoyas buying and selling"),
+            community("2", "George Mason University", "Fairfax, VA", "Patriots"),
+            community("3", "Arlington Neighbors", "Arlington, VA", "Near Georgetown"),
+            community("4", "Caf\u00e9 Soci\u00e9t\u00e9", "Montr\u00e9al, QC", "Quartier latin")));
+
+    @Test
+    public void testPrefixRanksNameFirst() {
+        List<String> ids = ids(index.search("georg", 10));
+        assertEquals(Arrays.asList("2", "1", "3"), ids);
+    }
+
+    @Test
+    public void testExactWordBeatsPrefix() {
+        assertEquals("2", ids(index.search("george", 10)).get(0));
+    }
+
+    @Test
+    public void testEveryWordMustMatch() {
+        assertEquals(Arrays.asList("2"), ids(index.search("george fairfax", 10)));
+        assertTrue(index.search("george montreal", 10).isEmpty());
+    }
+
+    @Test
+    public void testInfixTyposAndAccents() {
+        assertEquals("3", ids(index.search("lington", 10)).get(0));
+        assertEquals("1", ids(index.search("georgetwon univ", 10)).get(0));
+        assertEquals(Arrays.asList("4"), ids(index.search("MONTREAL cafe", 10)));
+    }
+
+    @Test
+    public void testEmptyTermListsByName() {
+        assertEquals(Arrays.asList("3", "4"), ids(index.search(null, 2)));
+        assertEquals(Arrays.asList("3", "4"), ids(index.search("  ", 2)));
+    }
+
+    private static List<String> ids(List<Community> communities) {
+        return communities.stream().map(Community::getId).collect(Collectors.toList());
+    }
+
+    private static Community community(String id, String name, String address, String description) {
+        Community community = new Community();
+        community.setId(id);
+        community.setName(name);
+        community.setAddress(address);
+        community.setDescription(description);
+        return community;
+    }
+}
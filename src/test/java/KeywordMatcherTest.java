@@ -0,0 +1,47 @@
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.iuxta.uxta.service.KeywordMatcher;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeywordMatcherTest {
+
+    private final KeywordMatcher.Keywords keywords = new KeywordMatcher.Keywords(ImmutableMap.of(
+            "a", Arrays.asList("drill", "Power Saw"),
+            "b", Arrays.asList("ladder"),
+            "c", Arrays.asList("caf\u00e9", "power")));
+
+    @Test
+    public void testMatchesWordsInAnyText() {
+        assertEquals(Sets.newHashSet("a", "b"), keywords.match("Cordless drill", "and a LADDER please"));
+        assertEquals(Collections.singleton("b"), keywords.match(null, "ladder"));
+    }
+
+    @Test
+    public void testPhrasesMatchWholeAndInOrder() {
+        assertEquals(Sets.newHashSet("a", "c"), keywords.match("power saw for the weekend"));
+        assertEquals(Collections.singleton("c"), keywords.match("saw, power"));
+        // a phrase doesn't run from one text into the next
+        assertEquals(Collections.singleton("c"), keywords.match("power", "saw"));
+    }
+
+    @Test
+    public void testIgnoresCaseAccentsAndPlurals() {
+        assertEquals(Collections.singleton("a"), keywords.match("Two DRILLS!"));
+        assertEquals(Collections.singleton("c"), keywords.match("Cafe table"));
+        assertTrue(keywords.match("drilling glass").isEmpty());
+    }
+
+    @Test
+    public void testWithAndWithout() {
+        KeywordMatcher.Keywords changed = keywords.with("b", Arrays.asList("drill")).without("a");
+        assertEquals(Collections.singleton("b"), changed.match("drill"));
+        assertTrue(changed.match("ladder").isEmpty());
+        assertEquals(Sets.newHashSet("a", "b"), keywords.match("drill ladder"));
+    }
+}
@@ -1,6 +1,7 @@
 import com.iuxta.uxta.UxtaUtils;
 import org.junit.Test;
 
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -13,4 +14,17 @@ public class NearbyUtilsTest {
         String code = UxtaUtils.getUniqueCode();
         assertTrue(code.length() == 6);
     }
+
+    @Test
+    public void testNextVersion() {
+        long first = UxtaUtils.nextVersion(null);
+        long second = UxtaUtils.nextVersion(first);
+        assertTrue(second > first);
+        // two saves of the same copy get different versions
+        assertNotEquals(UxtaUtils.nextVersion(first), UxtaUtils.nextVersion(first));
+        // a version from another server that is ahead of our clock still goes up, only slightly ahead so the clock
+        // isn't pushed into the future for the rest of the tests
+        long ahead = UxtaUtils.nextVersion(null) + 1000;
+        assertTrue(UxtaUtils.nextVersion(ahead) > ahead);
+    }
 }
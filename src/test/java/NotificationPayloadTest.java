@@ -0,0 +1,34 @@
+import com.iuxta.uxta.firebase.NotificationPayload;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationPayloadTest {
+
+    @Test
+    public void testFcmMessage() throws Exception {
+        NotificationPayload payload = new NotificationPayload();
+        payload.put("title", "New Offer");
+        payload.put("message", "a \"quoted\" message");
+        payload.put("reason", null);
+        JSONObject ios = new JSONObject(payload.toFcmMessage("token", "id-1", true));
+        assertEquals("token", ios.getString("to"));
+        assertEquals("id-1", ios.getString("message_id"));
+        assertEquals("a \"quoted\" message", ios.getJSONObject("data").getString("message"));
+        assertFalse(ios.getJSONObject("data").has("reason"));
+        assertEquals("New Offer", ios.getJSONObject("notification").getString("title"));
+        JSONObject android = new JSONObject(payload.toFcmMessage("token", "id-2", false));
+        assertTrue(android.getJSONObject("notification").length() == 0);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        NotificationPayload payload = new NotificationPayload().put("title", "t").put("type", "offer_closed");
+        NotificationPayload copy = NotificationPayload.fromJson(payload.toJson());
+        assertEquals("offer_closed", copy.get("type"));
+        assertEquals(payload.toJson(), copy.toJson());
+    }
+}
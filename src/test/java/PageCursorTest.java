@@ -0,0 +1,72 @@
+import com.iuxta.uxta.exception.BadRequestException;
+import com.iuxta.uxta.model.PageCursor;
+import com.iuxta.uxta.model.Request;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageCursorTest {
+
+    private static final String ID = "58a1f3c2e4b0a1b2c3d4e5f6";
+
+    private static final Date POST_DATE = new Date(1487000000000L);
+
+    @Test
+    public void testIdRoundTrip() {
+        String token = PageCursor.after(request(), false).encode();
+        assertEquals("i:" + ID, decoded(token));
+        BasicDBObject query = new BasicDBObject();
+        PageCursor.decode(token, false).addToQuery(query);
+        assertEquals(new BasicDBObject("$gt", new ObjectId(ID)), query.get("_id"));
+    }
+
+    @Test
+    public void testNewestRoundTrip() {
+        String token = PageCursor.after(request(), true).encode();
+        assertEquals("p:" + POST_DATE.getTime() + ":" + ID, decoded(token));
+        BasicDBObject query = new BasicDBObject();
+        PageCursor.decode(token, true).addToQuery(query);
+        BasicDBList or = (BasicDBList) ((BasicDBObject) ((BasicDBList) query.get("$and")).get(0)).get("$or");
+        assertEquals(new BasicDBObject("postDate", new BasicDBObject("$lt", POST_DATE)), or.get(0));
+        assertEquals(new BasicDBObject("postDate", POST_DATE).append("_id",
+                new BasicDBObject("$lt", new ObjectId(ID))), or.get(1));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRejectsIdCursorForNewest() {
+        PageCursor.decode(PageCursor.after(request(), false).encode(), true);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRejectsNewestCursorForId() {
+        PageCursor.decode(PageCursor.after(request(), true).encode(), false);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRejectsMalformedBase64() {
+        PageCursor.decode("not*base64!", false);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRejectsBadId() {
+        PageCursor.decode(Base64.getUrlEncoder().encodeToString("i:nope".getBytes(StandardCharsets.UTF_8)), false);
+    }
+
+    private static Request request() {
+        Request request = new Request();
+        request.setId(ID);
+        request.setPostDate(POST_DATE);
+        return request;
+    }
+
+    private static String decoded(String token) {
+        return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+}
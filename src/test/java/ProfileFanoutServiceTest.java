@@ -0,0 +1,32 @@
+import com.iuxta.uxta.service.ProfileFanoutService;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProfileFanoutServiceTest {
+
+    @Test
+    public void testChangedFields() {
+        BasicDBList blocked = new BasicDBList();
+        blocked.add("a");
+        BasicDBObject before = new BasicDBObject("_id", "1").append("firstName", "Kim").append("city", "DC")
+                .append("blockedUsers", blocked).append("phone", "555");
+        BasicDBList sameBlocked = new BasicDBList();
+        sameBlocked.add("a");
+        BasicDBObject after = new BasicDBObject("_id", "2").append("firstName", "Kimberly").append("city", "DC")
+                .append("blockedUsers", sameBlocked).append("pictureUrl", "http://x");
+        assertEquals(Arrays.asList("firstName", "phone", "pictureUrl"),
+                ProfileFanoutService.changedFields(before, after));
+    }
+
+    @Test
+    public void testNothingChanged() {
+        BasicDBObject user = new BasicDBObject("_id", "1").append("firstName", "Kim");
+        assertEquals(Collections.emptyList(), ProfileFanoutService.changedFields(user, (BasicDBObject) user.copy()));
+    }
+}
@@ -0,0 +1,74 @@
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.iuxta.uxta.model.Request;
+import com.iuxta.uxta.model.User;
+import com.iuxta.uxta.service.RecentRequestsDigest;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class RecentRequestsDigestTest {
+
+    private final List<Request> posts = Arrays.asList(
+            post("p1", "u1", "Sam", "ladder"),
+            post("p2", "u2", "Alex", "drill"),
+            post("p3", "u3", "Jo", "tent"));
+
+    private final Map<String, Set<String>> interested = ImmutableMap.of(
+            "p2", ImmutableSet.of("u4"),
+            "p3", ImmutableSet.of("u4", "u1"));
+
+    @Test
+    public void testLeavesOutOwnAndBlockedPosts() {
+        assertEquals(Arrays.asList("p2", "p3"), ids(RecentRequestsDigest.postsFor(user("u1", null, null), posts,
+                interested)));
+        assertEquals(Collections.singletonList("p3"), ids(RecentRequestsDigest.postsFor(user("u2",
+                Collections.singletonList("u1"), null), posts, interested)));
+    }
+
+    @Test
+    public void testKeywordsLimitThePosts() {
+        assertEquals(Arrays.asList("p2", "p3"), ids(RecentRequestsDigest.postsFor(user("u4", null,
+                Arrays.asList("drill", "tent")), posts, interested)));
+        assertEquals(Collections.emptyList(), ids(RecentRequestsDigest.postsFor(user("u5", null,
+                Collections.singletonList("kayak")), posts, interested)));
+    }
+
+    @Test
+    public void testMessage() {
+        assertEquals("Alex requested a drill. Can you help out?",
+                RecentRequestsDigest.digestFor(posts.subList(1, 2)).get("message"));
+        assertEquals("There are 3 new requests in your community.",
+                RecentRequestsDigest.digestFor(posts).get("message"));
+    }
+
+    private static Request post(String id, String userId, String firstName, String itemName) {
+        User poster = new User();
+        poster.setId(userId);
+        poster.setFirstName(firstName);
+        Request request = new Request();
+        request.setId(id);
+        request.setUser(poster);
+        request.setItemName(itemName);
+        return request;
+    }
+
+    private static User user(String id, List<String> blockedUsers, List<String> keywords) {
+        User user = new User();
+        user.setId(id);
+        user.setBlockedUsers(blockedUsers);
+        user.setNotificationKeywords(keywords);
+        return user;
+    }
+
+    private static List<String> ids(List<Request> requests) {
+        return requests.stream().map(Request::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,50 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.uxta.auth.Credentials;
+import com.iuxta.uxta.auth.VerifiedToken;
+import com.iuxta.uxta.auth.VerifiedTokenCache;
+import io.dropwizard.auth.AuthenticationException;
+import io.dropwizard.util.Duration;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class VerifiedTokenCacheTest {
+
+    @Test
+    public void testVerifiesOncePerToken() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(new MetricRegistry(), 10, Duration.minutes(5));
+        Credentials credentials = new Credentials("token", "google", null);
+        AtomicInteger calls = new AtomicInteger();
+        Date later = new Date(System.currentTimeMillis() + 60000);
+        for (int i = 0; i < 3; i++) {
+            VerifiedToken token = cache.get(credentials, () -> {
+                calls.incrementAndGet();
+                return new VerifiedToken("123", later, null);
+            });
+            assertEquals("123", token.getUserId());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testExpiredTokenIsReverified() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(new MetricRegistry(), 10, Duration.minutes(5));
+        Credentials credentials = new Credentials("token", "facebook", null);
+        AtomicInteger calls = new AtomicInteger();
+        Date earlier = new Date(System.currentTimeMillis() - 1000);
+        try {
+            cache.get(credentials, () -> {
+                calls.incrementAndGet();
+                return new VerifiedToken("123", earlier, null);
+            });
+            fail("expired token should not authenticate");
+        } catch (AuthenticationException e) {
+            // expected
+        }
+        assertEquals(2, calls.get());
+    }
+}